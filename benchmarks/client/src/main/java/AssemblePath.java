@@ -0,0 +1,45 @@
+import java.io.File;
+import java.util.Properties;
+
+import bench.BenchPath;
+import bench.Fixtures;
+
+/**
+ * Assembles the chunk files into the file (Client.assembleChunks)
+ */
+public class AssemblePath implements BenchPath {
+
+    // The client assembling the chunks
+    private Client client;
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) throws Exception {
+        int chunkNum = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        ChunkFile file = new ChunkFile(chunkNum, fileSize, "data.bin", null, null, chunkSize);
+
+        Properties config = new Properties();
+        config.setProperty("StorageMode", "chunks");
+        config.setProperty("ChunkDir", dir.getPath() + "/spt/");
+        config.setProperty("FileDir", dir.getPath() + "/file/");
+        config.setProperty("StateFile", dir.getPath() + "/state.dat");
+        client = new Client(config, file);
+
+        // The chunks as received
+        for (int chunkId = 1; chunkId <= chunkNum; chunkId++) {
+            long offset = (long) (chunkId - 1) * chunkSize;
+            Fixtures.writeRandomFile(new File(dir, "spt/" + chunkId),
+                    Math.min(chunkSize, fileSize - offset));
+        }
+    }
+
+    @Override
+    public long run() throws Exception {
+        client.assembleChunks();
+        return 0;
+    }
+
+    @Override
+    public void tearDown() {
+        client.close();
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import bench.BenchPath;
+import bench.Fixtures;
+
+/**
+ * Receives chunks from a loopback socket, verifies and stores them
+ * (Client.saveChunk), one chunk at a time
+ *
+ * The variant is the storage mode: chunks (a file per chunk) or direct
+ * (straight into the preallocated file). The other end of the socket keeps
+ * sending the same chunk, which matches the hash of every chunk.
+ */
+public class SaveChunkPath implements BenchPath {
+
+    // Both ends of the connection
+    private SocketChannel[] sockets;
+
+    // Input of the receiving end
+    private DataInputStream input;
+    private ReadableByteChannel channel;
+
+    // The client saving the chunks
+    private Client client;
+
+    // Released once a chunk is verified and stored
+    private final Semaphore saved = new Semaphore(0);
+
+    // Called once a chunk is verified and stored
+    private final ChunkVerifier.Callback callback = new ChunkVerifier.Callback() {
+        @Override
+        public void verified(int chunkId, boolean valid) {
+            saved.release();
+        }
+    };
+
+    // Number of chunks
+    private int chunkNum;
+
+    // Next chunk to receive
+    private int next = 1;
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) throws Exception {
+        byte[] chunk = new byte[chunkSize];
+        new Random(5106).nextBytes(chunk);
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(chunk);
+        chunkNum = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        byte[][] hashes = new byte[chunkNum + 1][];
+        Arrays.fill(hashes, 1, chunkNum + 1, hash);
+        ChunkFile file = new ChunkFile(chunkNum, fileSize, "data.bin", hashes, null, chunkSize);
+
+        Properties config = new Properties();
+        config.setProperty("StorageMode", variant);
+        config.setProperty("ChunkDir", dir.getPath() + "/spt/");
+        config.setProperty("FileDir", dir.getPath() + "/file/");
+        config.setProperty("StateFile", dir.getPath() + "/state.dat");
+        config.setProperty("StateSyncEvery", "32");
+        config.setProperty("HashThreads", "2");
+        client = new Client(config, file);
+
+        sockets = Fixtures.loopback();
+        input = new DataInputStream(sockets[1].socket().getInputStream());
+        channel = Channels.newChannel(input);
+        send(sockets[0], chunk);
+    }
+
+    /**
+     * Starts a daemon thread sending [length, bytes] of a chunk until the
+     * socket is closed
+     */
+    private static void send(final SocketChannel socket, final byte[] chunk) throws IOException {
+        final DataOutputStream output = new DataOutputStream(socket.socket().getOutputStream());
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer frame = ByteBuffer.allocate(4 + chunk.length);
+                frame.putInt(chunk.length).put(chunk);
+                try {
+                    while (true) {
+                        output.write(frame.array());
+                    }
+                } catch (IOException e) {
+                    // Closed by the benchmark
+                }
+            }
+        }, "sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public long run() throws Exception {
+        int chunkId = next;
+        client.saveChunk(input, channel, chunkId, null, callback);
+        saved.acquire();
+        next = next % chunkNum + 1;
+        return chunkId;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        client.close();
+        sockets[0].close();
+        sockets[1].close();
+    }
+}
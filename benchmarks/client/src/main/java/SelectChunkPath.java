@@ -0,0 +1,57 @@
+import java.io.File;
+import java.util.Random;
+
+import bench.BenchPath;
+
+/**
+ * Selects a chunk to send to a neighbour (ClientListener.selectChunk, which
+ * asks the ChunkSelector of the config)
+ *
+ * The variant is the selector: rarest, sequential or random. I own all the
+ * chunks, the neighbour owns a random half of them and every chunk is owned
+ * by 0 to 4 other peers.
+ */
+public class SelectChunkPath implements BenchPath {
+
+    // The selector
+    private ChunkSelector selector;
+
+    // My chunks and the chunks of the neighbour
+    private ChunkBitmap source;
+    private ChunkBitmap target;
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) {
+        int chunkNum = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        Random random = new Random(5106);
+        source = new ChunkBitmap(chunkNum);
+        target = new ChunkBitmap(chunkNum);
+        ChunkAvailability availability = new ChunkAvailability(chunkNum);
+        for (int chunkId = 1; chunkId <= chunkNum; chunkId++) {
+            source.set(chunkId);
+            if (random.nextBoolean()) {
+                target.set(chunkId);
+            }
+            for (int i = random.nextInt(5); i > 0; i--) {
+                availability.add(chunkId);
+            }
+        }
+
+        if ("sequential".equals(variant)) {
+            selector = new SequentialSelector();
+        } else if ("random".equals(variant)) {
+            selector = new RandomSelector();
+        } else {
+            selector = new RarestFirstSelector(availability);
+        }
+    }
+
+    @Override
+    public long run() {
+        return selector.select(source, target);
+    }
+
+    @Override
+    public void tearDown() {
+    }
+}
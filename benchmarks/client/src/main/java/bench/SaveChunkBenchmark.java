@@ -0,0 +1,38 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to receive, verify and store one chunk from a loopback socket
+ * (Client.saveChunk)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class SaveChunkBenchmark extends PathBenchmark {
+
+    @Param({"chunks", "direct"})
+    public String storage;
+
+    @Setup
+    public void setUp() throws Exception {
+        open("SaveChunkPath", storage);
+    }
+
+    @Benchmark
+    public long saveChunk() throws Exception {
+        return path.run();
+    }
+}
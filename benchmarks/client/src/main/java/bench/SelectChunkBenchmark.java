@@ -0,0 +1,38 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to select the chunk to send to a neighbour
+ * (ClientListener.selectChunk)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class SelectChunkBenchmark extends PathBenchmark {
+
+    @Param({"rarest", "sequential", "random"})
+    public String selector;
+
+    @Setup
+    public void setUp() throws Exception {
+        open("SelectChunkPath", selector);
+    }
+
+    @Benchmark
+    public long selectChunk() throws Exception {
+        return path.run();
+    }
+}
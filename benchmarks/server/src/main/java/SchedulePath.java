@@ -0,0 +1,57 @@
+import java.io.File;
+import java.util.BitSet;
+
+import bench.BenchPath;
+
+/**
+ * Takes chunks from the scheduler shared by all the connections
+ * (ChunkScheduler.next), from several threads at once
+ *
+ * Every thread stands for a session: it takes the rarest chunk its client
+ * does not own, and once its client owns every chunk it leaves, giving its
+ * chunks back, and a new client starts. The replication counts stay between
+ * 0 and the number of threads.
+ */
+public class SchedulePath implements BenchPath {
+
+    // Scheduler shared by the threads
+    private ChunkScheduler scheduler;
+
+    // Number of chunks
+    private int chunkNum;
+
+    // Chunks the client of each thread owns (bit id)
+    private final ThreadLocal<BitSet> owned = new ThreadLocal<BitSet>() {
+        @Override
+        protected BitSet initialValue() {
+            return new BitSet(chunkNum + 1);
+        }
+    };
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) {
+        chunkNum = SplitFiles.countChunks(fileSize, chunkSize);
+        scheduler = new ChunkScheduler(chunkNum, 1, chunkNum);
+    }
+
+    @Override
+    public long run() {
+        BitSet chunks = owned.get();
+        int chunkId = scheduler.next(chunks, false);
+        if (chunkId > 0) {
+            chunks.set(chunkId);
+            return chunkId;
+        }
+
+        // The client has the whole file, it leaves
+        for (int i = chunks.nextSetBit(1); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            scheduler.release(i);
+        }
+        chunks.clear();
+        return 0;
+    }
+
+    @Override
+    public void tearDown() {
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+
+import bench.BenchPath;
+import bench.Fixtures;
+
+/**
+ * Sends chunks to a client over a loopback socket (ServerHandler.sendChunk)
+ *
+ * The variant is the chunk source: split (chunk files), cache (chunk files
+ * behind a chunk cache holding the whole file) or mmap (a mapping of the
+ * file), or heap: the send path before the zero-copy one, kept as the
+ * baseline, which reads each chunk file into a new byte array and writes it
+ * to the socket stream. The client end only drains the socket.
+ */
+public class SendChunkPath implements BenchPath {
+
+    // Both ends of the connection
+    private SocketChannel[] sockets;
+
+    // Handler of the connection
+    private ServerHandler handler;
+
+    // Number of chunks
+    private int chunkNum;
+
+    // Next chunk to send
+    private int next = 1;
+
+    // Heap variant: chunk directory, chunk size and output of the connection
+    private String chunkDir;
+
+    private int chunkSize;
+
+    private DataOutputStream output;
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) throws Exception {
+        File data = new File(dir, "data.bin");
+        Fixtures.writeRandomFile(data, fileSize);
+        Manifest manifest = Manifest.scan(data);
+
+        ChunkStore store;
+        String chunkDir = dir.getPath() + "/spt/";
+        if ("mmap".equals(variant)) {
+            chunkNum = SplitFiles.countChunks(fileSize, chunkSize);
+            store = new ChunkStore(data, chunkSize);
+        } else {
+            chunkNum = SplitFiles.split(chunkSize, chunkDir, dir.getPath(), manifest, 4, null);
+            store = new ChunkStore(chunkDir, "cache".equals(variant) ? new ChunkCache(fileSize) : null);
+        }
+        if ("heap".equals(variant)) {
+            this.chunkDir = chunkDir;
+            this.chunkSize = chunkSize;
+        }
+        ChunkFile file = new ChunkFile(chunkNum, fileSize, data.getName(), null, manifest, chunkSize);
+
+        Properties config = new Properties();
+        config.setProperty("ClientNumber", "1");
+        config.setProperty("ChunkSize", String.valueOf(chunkSize));
+        sockets = Fixtures.loopback();
+        ChunkScheduler scheduler = new ChunkScheduler(chunkNum, 1, chunkNum);
+        handler = new ServerHandler(config, file, store, scheduler, new Membership(),
+                new ServerMetrics(scheduler, store), sockets[1].socket());
+        output = new DataOutputStream(sockets[1].socket().getOutputStream());
+        Fixtures.drain(sockets[0]);
+    }
+
+    @Override
+    public long run() throws IOException {
+        int chunkId = next;
+        if (chunkDir != null) {
+            sendCopy(chunkId);
+        } else {
+            handler.sendChunk(chunkId);
+        }
+        next = next % chunkNum + 1;
+        return chunkId;
+    }
+
+    /**
+     * Sends a chunk through the heap, as ServerHandler.sendChunk did
+     */
+    private void sendCopy(int chunkId) throws IOException {
+        byte[] bytes = new byte[chunkSize];
+        FileInputStream input = new FileInputStream(chunkDir + chunkId);
+        try {
+            output.writeInt(chunkId);
+            int length = input.read(bytes);
+            output.writeInt(length);
+            output.write(bytes, 0, length);
+            output.flush();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        sockets[1].close();
+        sockets[0].close();
+    }
+}
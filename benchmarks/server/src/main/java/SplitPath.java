@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import bench.BenchPath;
+import bench.Fixtures;
+
+/**
+ * Splits a file into chunk files and hashes the chunks (SplitFiles.split)
+ *
+ * The variant is [splitter, hashing, threads]: pool (SplitFiles.split with
+ * that many workers) or legacy (the sequential split SplitFiles.split
+ * replaced, kept as the baseline), and whether the chunks are hashed.
+ */
+public class SplitPath implements BenchPath {
+
+    // Size of each chunk
+    private int chunkSize;
+
+    // The file to split
+    private File file;
+
+    // Directory of the file
+    private String root;
+
+    // Directory of the chunks
+    private String chunkDir;
+
+    // Manifest of the file
+    private Manifest manifest;
+
+    // Hashes of the chunks, or null
+    private byte[][] hashes;
+
+    // true for the legacy splitter
+    private boolean legacy;
+
+    // Number of workers of the pool
+    private int threads;
+
+    @Override
+    public void setUp(int chunkSize, long fileSize, String variant, File dir) throws Exception {
+        String[] parts = variant.split(",");
+        this.file = new File(dir, "data.bin");
+        Fixtures.writeRandomFile(file, fileSize);
+        this.chunkSize = chunkSize;
+        this.root = dir.getPath();
+        this.chunkDir = dir.getPath() + "/spt/";
+        this.manifest = Manifest.scan(file);
+        this.legacy = "legacy".equals(parts[0]);
+        if (Boolean.parseBoolean(parts[1])) {
+            this.hashes = new byte[SplitFiles.countChunks(fileSize, chunkSize) + 1][];
+        }
+        this.threads = Integer.parseInt(parts[2]);
+    }
+
+    @Override
+    public long run() throws Exception {
+        if (legacy) {
+            return splitLegacy();
+        }
+        return SplitFiles.split(chunkSize, chunkDir, root, manifest, threads, hashes);
+    }
+
+    /**
+     * Splits the file as SplitFiles.split did before the worker pool: one
+     * chunk after the other, each read through a new RandomAccessFile and
+     * written with a new stream. The file is closed here (the old code left
+     * it open) and seeked with a long offset (the old one overflowed past
+     * 2 GB), so that the baseline runs on the large files.
+     */
+    private int splitLegacy() throws IOException, NoSuchAlgorithmException {
+        new File(chunkDir).mkdir();
+        int n = SplitFiles.countChunks(file.length(), chunkSize);
+        byte[] bytes = new byte[chunkSize];
+        MessageDigest digest = hashes == null ? null : MessageDigest.getInstance(SplitFiles.HASH_ALGORITHM);
+        for (int i = 0; i < n; i++) {
+            RandomAccessFile reader = new RandomAccessFile(file, "rw");
+            int length;
+            try {
+                reader.seek((long) i * chunkSize);
+                length = reader.read(bytes);
+            } finally {
+                reader.close();
+            }
+            FileOutputStream output = new FileOutputStream(chunkDir + (i + 1));
+            try {
+                output.write(bytes, 0, length);
+            } finally {
+                output.close();
+            }
+            if (digest != null) {
+                digest.update(bytes, 0, length);
+                hashes[i + 1] = digest.digest();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void tearDown() {
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunks handed out per second by the scheduler shared by the connections
+ * (ChunkScheduler.next), with 1, 4 and 16 sessions taking chunks at once
+ *
+ * The scheduler takes a lock for every chunk. If the lock were contended the
+ * chunks per second would drop as sessions are added.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class ScheduleBenchmark extends PathBenchmark {
+
+    @Setup
+    public void setUp() throws Exception {
+        open("SchedulePath", "");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long sessions1() throws Exception {
+        return path.run();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long sessions4() throws Exception {
+        return path.run();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long sessions16() throws Exception {
+        return path.run();
+    }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Bytes per second sent over a loopback socket (ServerHandler.sendChunk),
+ * with the CPU time the sending thread spends per GB
+ *
+ * The CPU time is read once per iteration, reading it for every chunk would
+ * cost about as much as sending a small chunk. It leaves out the kernel work
+ * done for the receiving end, which is drained by another thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class SendThroughputBenchmark extends PathBenchmark {
+
+    private static final double GB = 1 << 30;
+
+    // heap is the copying path the others replaced
+    @Param({"heap", "split", "cache", "mmap"})
+    public String source;
+
+    /**
+     * Bytes sent
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        // Bytes sent, per second in the results
+        public long bytes;
+    }
+
+    /**
+     * CPU time of the sending thread per GB
+     *
+     * JMH adds up the events counters of the measurement iterations, so
+     * every iteration counts its share of the mean.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+
+        // CPU milliseconds per GB sent
+        public double cpuMsPerGB;
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        private long startCpu;
+
+        private long bytes;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            startCpu = threads.getCurrentThreadCpuTime();
+            bytes = 0;
+            cpuMsPerGB = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop(BenchmarkParams params) {
+            long cpu = threads.getCurrentThreadCpuTime() - startCpu;
+            int iterations = Math.max(1, params.getMeasurement().getCount());
+            cpuMsPerGB = bytes > 0 ? cpu / 1e6 / (bytes / GB) / iterations : 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        open("SendChunkPath", source);
+    }
+
+    @Benchmark
+    public long send(Bytes sent, Cpu cpu) throws Exception {
+        long chunkId = path.run();
+        sent.bytes += chunkSize;
+        cpu.bytes += chunkSize;
+        return chunkId;
+    }
+}
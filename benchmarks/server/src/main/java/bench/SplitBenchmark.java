@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to split a whole file (SplitFiles.split), with and without hashing,
+ * against the sequential splitter it replaced
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class SplitBenchmark extends PathBenchmark {
+
+    // legacy is the sequential splitter, it ignores threads
+    @Param({"legacy", "pool"})
+    public String splitter;
+
+    @Param({"true", "false"})
+    public boolean hashing;
+
+    @Param({"4"})
+    public int threads;
+
+    @Setup
+    public void setUp() throws Exception {
+        open("SplitPath", splitter + "," + hashing + "," + threads);
+    }
+
+    @Benchmark
+    public long split() throws Exception {
+        return path.run();
+    }
+}
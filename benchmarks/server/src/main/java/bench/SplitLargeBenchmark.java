@@ -0,0 +1,88 @@
+package bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to split a 1 GB and a 10 GB file (SplitFiles.split), with and without
+ * hashing, against the sequential splitter it replaced
+ *
+ * Every split is timed once, the file is written again for each size only.
+ * A file bigger than the memory is read from the disk, a smaller one mostly
+ * from the page cache. The files take twice their size on the disk (the
+ * file and its chunks), so the run of all the benchmarks leaves this one out
+ * (-e SplitLarge) and it is run by name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class SplitLargeBenchmark {
+
+    @Param({"1048576"})
+    public int chunkSize;
+
+    @Param({"1073741824", "10737418240"})
+    public long fileSize;
+
+    // legacy is the sequential splitter, it ignores threads
+    @Param({"legacy", "pool"})
+    public String splitter;
+
+    @Param({"true", "false"})
+    public boolean hashing;
+
+    @Param({"4"})
+    public int threads;
+
+    // The measured path
+    private BenchPath path;
+
+    // Temporary directory of the path
+    private File dir;
+
+    // Standard output of the program, restored afterwards
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws Exception {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dir = Files.createTempDirectory("bench").toFile();
+        path = (BenchPath) Class.forName("SplitPath").getDeclaredConstructor().newInstance();
+        path.setUp(chunkSize, fileSize, splitter + "," + hashing + "," + threads, dir);
+    }
+
+    @Benchmark
+    public long split() throws Exception {
+        return path.run();
+    }
+
+    @TearDown
+    public void close() throws Exception {
+        try {
+            path.tearDown();
+        } finally {
+            Fixtures.delete(dir);
+            System.setOut(out);
+        }
+    }
+}
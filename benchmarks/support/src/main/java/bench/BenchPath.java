@@ -0,0 +1,36 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * A path of the program measured on its own by a benchmark
+ *
+ * The paths are implemented in the default package, next to the classes of
+ * the program, so that they can reach its package-private methods. JMH wants
+ * the benchmarks in a named package, which cannot refer to the default
+ * package, so the benchmarks create the paths by name once, before measuring.
+ */
+public interface BenchPath {
+
+    /**
+     * Prepares the files, sockets and objects of the path
+     *
+     * @param chunkSize Size of each chunk
+     * @param fileSize  Size of the file
+     * @param variant   Variant of the path, as named by the benchmark
+     * @param dir       Empty temporary directory, deleted afterwards
+     */
+    void setUp(int chunkSize, long fileSize, String variant, File dir) throws Exception;
+
+    /**
+     * Runs the path once
+     *
+     * @return A result of the path, consumed by the benchmark
+     */
+    long run() throws Exception;
+
+    /**
+     * Releases the sockets and threads of the path
+     */
+    void tearDown() throws Exception;
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Files and sockets the paths are measured with
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a file of random bytes (the same bytes on every run)
+     *
+     * @param file the file
+     * @param size Size of the file
+     */
+    public static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(5106);
+        byte[] block = new byte[1 << 20];
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Deletes a file or a directory tree
+     *
+     * @param file the file or the directory
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Connects two sockets over the loopback interface
+     *
+     * @return [the connecting end, the accepted end], both blocking
+     */
+    public static SocketChannel[] loopback() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            return new SocketChannel[] {client, server.accept()};
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Starts a daemon thread reading and discarding everything from a
+     * channel until it is closed
+     *
+     * @param channel the channel
+     */
+    public static void drain(final SocketChannel channel) {
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                try {
+                    while (channel.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed by the benchmark
+                }
+            }
+        }, "drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+}
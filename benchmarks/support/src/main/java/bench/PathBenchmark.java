@@ -0,0 +1,61 @@
+package bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Common state of the benchmarks: the chunk and file sizes, a temporary
+ * directory and the measured path
+ *
+ * The program prints a line for most chunks, the output is thrown away while
+ * the benchmark runs so that it does not flood the results.
+ */
+@State(Scope.Benchmark)
+public abstract class PathBenchmark {
+
+    @Param({"16384", "1048576"})
+    public int chunkSize;
+
+    @Param({"4194304", "67108864"})
+    public long fileSize;
+
+    // The measured path
+    protected BenchPath path;
+
+    // Temporary directory of the path
+    private File dir;
+
+    // Standard output of the program, restored afterwards
+    private PrintStream out;
+
+    /**
+     * Creates and prepares a path
+     *
+     * @param name    Name of the class implementing the path
+     * @param variant Variant of the path
+     */
+    protected void open(String name, String variant) throws Exception {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dir = Files.createTempDirectory("bench").toFile();
+        path = (BenchPath) Class.forName(name).getDeclaredConstructor().newInstance();
+        path.setUp(chunkSize, fileSize, variant, dir);
+    }
+
+    @TearDown
+    public void close() throws Exception {
+        try {
+            path.tearDown();
+        } finally {
+            Fixtures.delete(dir);
+            System.setOut(out);
+        }
+    }
+}
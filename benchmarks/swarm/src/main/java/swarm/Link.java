@@ -0,0 +1,277 @@
+package swarm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A loopback TCP proxy standing for the network between two programs
+ *
+ * Every connection accepted by the link is forwarded to the target port, and
+ * each direction is shaped on its own: at most rate bytes per second, each
+ * segment delivered latency ms after it was read, and a fraction loss of the
+ * segments held back for a retransmission timeout, which delays everything
+ * behind it as a lost TCP segment would. The bytes are counted both ways.
+ */
+public class Link {
+
+    // Size of a segment when segments may be lost, the usual MSS
+    private static final int LOSSY_SEGMENT = 1460;
+
+    // Size of a segment otherwise
+    private static final int SEGMENT = 16384;
+
+    // Minimum retransmission timeout of a lost segment, in ms (as in Linux)
+    private static final int MIN_RTO = 200;
+
+    /**
+     * Bytes read from one side, due on the other side at a time
+     */
+    private static final class Segment {
+
+        // The bytes, null at the end of the stream
+        final byte[] bytes;
+
+        // Time the bytes may be written, in System.nanoTime()
+        final long due;
+
+        Segment(byte[] bytes, long due) {
+            this.bytes = bytes;
+            this.due = due;
+        }
+    }
+
+    // Name of the link, like 2->0
+    private final String name;
+
+    // Socket accepting the connections
+    private final ServerSocket listener;
+
+    // Port the connections are forwarded to
+    private final int targetPort;
+
+    // Bandwidth cap of each direction in bytes per second, 0 for none
+    private final long rate;
+
+    // Added one-way latency, in ms
+    private final int latency;
+
+    // Fraction of the segments which are lost
+    private final double loss;
+
+    // Bytes sent by the side which connected, and by the target
+    private final AtomicLong toTarget = new AtomicLong();
+    private final AtomicLong toInitiator = new AtomicLong();
+
+    // Number of connections accepted, seeds the loss of each direction
+    private int connections;
+
+    /**
+     * Constructor, listens on an ephemeral loopback port
+     *
+     * @param name       Name of the link, like 2->0
+     * @param targetPort Port the connections are forwarded to
+     * @param rate       Bandwidth cap of each direction in bytes per second,
+     *                   0 for none
+     * @param latency    Added one-way latency, in ms
+     * @param loss       Fraction of the segments which are lost
+     */
+    public Link(String name, int targetPort, long rate, int latency, double loss)
+            throws IOException {
+        this.name = name;
+        this.targetPort = targetPort;
+        this.rate = rate;
+        this.latency = latency;
+        this.loss = loss;
+        this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "link " + name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accepts the connections and forwards each of them to the target
+     */
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Socket initiator = listener.accept();
+                Socket target;
+                try {
+                    target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                } catch (IOException e) {
+                    // Refused as the target would have refused it
+                    initiator.close();
+                    continue;
+                }
+                initiator.setTcpNoDelay(true);
+                target.setTcpNoDelay(true);
+                long seed = ((long) name.hashCode() << 32) + connections++;
+                forward(initiator, target, toTarget, new Random(seed), name + " up");
+                forward(target, initiator, toInitiator, new Random(~seed), name + " down");
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.err.println("Link " + name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards one direction of a connection: a reader queues the segments
+     * with the time they are due, a writer delivers them at that time and no
+     * faster than the rate
+     *
+     * @param from    socket read
+     * @param to      socket written
+     * @param counter bytes delivered
+     * @param random  draws the lost segments
+     * @param label   name of the threads
+     */
+    private void forward(final Socket from, final Socket to, final AtomicLong counter,
+                         final Random random, String label) {
+        final int segmentSize = loss > 0 ? LOSSY_SEGMENT : SEGMENT;
+        final long delay = latency * 1000000L;
+        // A lost segment waits for the timeout and then the retransmission
+        final long lostDelay = (Math.max(MIN_RTO, 2 * latency) + latency) * 1000000L;
+
+        // Room for twice the bytes in flight, so that the reader is not what
+        // limits the rate
+        long inFlight = rate > 0
+                ? rate * (latency + (loss > 0 ? MIN_RTO : 0)) / 1000 : 64L * segmentSize;
+        int capacity = (int) Math.min(65536, Math.max(64, 2 * inFlight / segmentSize));
+        final BlockingQueue<Segment> queue = new ArrayBlockingQueue<Segment>(capacity);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream input = from.getInputStream();
+                    byte[] buffer = new byte[segmentSize];
+                    int length;
+                    while ((length = input.read(buffer)) > 0) {
+                        byte[] bytes = new byte[length];
+                        System.arraycopy(buffer, 0, bytes, 0, length);
+                        boolean lost = loss > 0 && random.nextDouble() < loss;
+                        queue.put(new Segment(bytes, System.nanoTime() + (lost ? lostDelay : delay)));
+                    }
+                    queue.put(new Segment(null, System.nanoTime() + delay));
+                } catch (IOException e) {
+                    close(from, to);
+                } catch (InterruptedException e) {
+                    close(from, to);
+                }
+            }
+        }, label + " reader");
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream output = to.getOutputStream();
+                    // Earliest time of the next write under the rate
+                    long next = System.nanoTime();
+                    while (true) {
+                        Segment segment = queue.take();
+                        // Segments are delivered in order, so a lost one
+                        // holds back the ones behind it
+                        sleepUntil(Math.max(segment.due, next));
+                        if (segment.bytes == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        output.write(segment.bytes);
+                        counter.addAndGet(segment.bytes.length);
+                        if (rate > 0) {
+                            next = Math.max(next, System.nanoTime())
+                                    + segment.bytes.length * 1000000000L / rate;
+                        }
+                    }
+                } catch (IOException e) {
+                    close(from, to);
+                } catch (InterruptedException e) {
+                    close(from, to);
+                }
+            }
+        }, label + " writer");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Waits until a time
+     *
+     * @param deadline the time, in System.nanoTime()
+     */
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Closes both sides of a connection
+     */
+    private static void close(Socket a, Socket b) {
+        try {
+            a.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            b.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stops accepting connections
+     */
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return Port of the link
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * @return Bytes delivered from the side which connected to the target
+     */
+    public long getBytesToTarget() {
+        return toTarget.get();
+    }
+
+    /**
+     * @return Bytes delivered from the target to the side which connected
+     */
+    public long getBytesToInitiator() {
+        return toInitiator.get();
+    }
+}
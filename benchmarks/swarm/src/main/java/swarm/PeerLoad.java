@@ -0,0 +1,598 @@
+package swarm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Connects thousands of simulated peers to one server in a single JVM and
+ * reports the memory and threads the server holds for them and the rate it
+ * serves them at
+ *
+ * A simulated peer is not a client: it speaks protocol version 4 (no swarm
+ * membership, one seed), skips the bytes of the chunks instead of storing
+ * them and acknowledges every chunk at once. All the peers run on a single
+ * selector thread, so the server is what gets measured.
+ *
+ * The peers first all connect and read the header, then wait: the server
+ * holds every session before the bitfield, where the memory and the threads
+ * are counted. Then all the peers send an empty bitfield and download their
+ * share of the chunks at once.
+ *
+ * Run from the root of the repository after mvn -B package:
+ *
+ *     java -cp benchmarks/swarm/target/swarm.jar swarm.PeerLoad --peers 10000
+ *
+ * Every peer takes two file descriptors (both ends of its connection), so
+ * ulimit -n has to be above twice the number of peers.
+ */
+public class PeerLoad {
+
+    // Options taking a value, with their defaults
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULTS.put("peers", "1000");
+        DEFAULTS.put("size", "256m");
+        DEFAULTS.put("chunk-size", "16k");
+        DEFAULTS.put("window", "16");
+        // Below the accept backlog of the server (50), more connections in
+        // flight overflow it and some get reset
+        DEFAULTS.put("batch", "32");
+        DEFAULTS.put("engine", "");
+        DEFAULTS.put("execution", "");
+        DEFAULTS.put("timeout", "600");
+        DEFAULTS.put("server-config", "server/config.properties");
+        DEFAULTS.put("server-classes", "");
+    }
+
+    // Protocol constants, the harness does not see the classes of the server
+    private static final int MAGIC = 0xC5106C01;
+
+    private static final int VERSION = 4;
+
+    // File descriptors left for the JVM, the jars and the chunk files
+    private static final int SPARE_FILES = 200;
+
+    /**
+     * What a simulated peer reads next
+     */
+    private enum Step {
+        CONNECTING, NEIGHBOUR, NAME_LENGTH, NAME, SIZE, CHUNK_NUM, NUM, HASH_NUM, HASHES,
+        HELD, REMAINING, CHUNK_ID, LENGTH, DATA, DONE, FAILED
+    }
+
+    /**
+     * A simulated peer, parsing what the server sends a field at a time
+     */
+    private static final class Peer {
+
+        final int id;
+
+        SocketChannel channel;
+
+        SelectionKey key;
+
+        Step step = Step.CONNECTING;
+
+        // Bytes of the field being read, and of it read so far
+        int need;
+
+        int have;
+
+        long value;
+
+        // Bytes left to skip (the filename, the hashes or a chunk)
+        long skip;
+
+        // Chunks and bytes received
+        int chunks;
+
+        long bytes;
+
+        // Bytes to write: the handshake, the bitfield or the last acknowledge
+        final ByteBuffer out = ByteBuffer.allocate(16);
+
+        Peer(int id) {
+            this.id = id;
+        }
+
+        void expect(Step next, int bytes) {
+            step = next;
+            need = bytes;
+            have = 0;
+            value = 0;
+        }
+
+        void skip(Step next, long bytes) {
+            step = next;
+            need = 0;
+            skip = bytes;
+        }
+    }
+
+    private final Peer[] peers;
+
+    private final InetSocketAddress server;
+
+    private final int window;
+
+    private final Selector selector;
+
+    // Shared by all the peers, they run on one thread
+    private final ByteBuffer in = ByteBuffer.allocateDirect(1 << 18);
+
+    // Peers past the header (held or further), done and failed
+    private int held;
+
+    private int done;
+
+    private int failed;
+
+    // Peers which read the header
+    private int joined;
+
+    private final List<String> errors = new ArrayList<String>();
+
+    private PeerLoad(int n, InetSocketAddress server, int window) throws IOException {
+        this.peers = new Peer[n + 1];
+        this.server = server;
+        this.window = window;
+        this.selector = Selector.open();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        List<String> sets = new ArrayList<String>();
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--verbose")) {
+                verbose = true;
+            } else if (option.equals("--set") && i + 1 < args.length) {
+                sets.add(args[++i]);
+            } else if (option.startsWith("--") && DEFAULTS.containsKey(option.substring(2))
+                    && i + 1 < args.length) {
+                options.put(option.substring(2), args[++i]);
+            } else {
+                usage("Unknown option " + option);
+            }
+        }
+
+        int n = Integer.parseInt(options.get("peers"));
+        long size = Swarm.parseSize(options.get("size"));
+        long chunkSize = Swarm.parseSize(options.get("chunk-size"));
+        int window = Integer.parseInt(options.get("window"));
+        int batch = Integer.parseInt(options.get("batch"));
+        long timeout = Long.parseLong(options.get("timeout")) * 1000000000L;
+        if (n < 1 || size < 1 || chunkSize < 1 || chunkSize > Integer.MAX_VALUE
+                || window < 1 || batch < 1) {
+            usage("Invalid option value");
+        }
+        long files = maxFiles();
+        if (files > 0 && 2L * n + SPARE_FILES > files) {
+            usage("ulimit -n is " + files + ", " + n + " peers need "
+                    + (2L * n + SPARE_FILES));
+        }
+
+        File jar = new File(PeerLoad.class.getProtectionDomain().getCodeSource().getLocation()
+                .toURI());
+        File classes = options.get("server-classes").isEmpty()
+                ? new File(jar.getParentFile(), "lib/server.jar")
+                : new File(options.get("server-classes"));
+        if (!classes.exists()) {
+            usage("No classes at " + classes + ", run mvn -B package first");
+        }
+
+        Properties config = Swarm.load(options.get("server-config"));
+        if (!verbose) {
+            config.setProperty("LogLevel", "off");
+        }
+        config.setProperty("MetricsPort", "");
+        // Version 4 peers take the chunk size of the config, and skip the hashes
+        config.setProperty("TargetChunks", "0");
+        config.setProperty("ChunkSize", String.valueOf(chunkSize));
+        config.setProperty("ChunkHashes", "false");
+        for (String set : sets) {
+            int equals = set.indexOf('=');
+            if (!set.startsWith("server.") || equals < 0) {
+                usage("Invalid --set " + set);
+            }
+            config.setProperty(set.substring("server.".length(), equals),
+                    set.substring(equals + 1));
+        }
+        if (!options.get("engine").isEmpty()) {
+            config.setProperty("ServerEngine", options.get("engine"));
+        }
+        if (!options.get("execution").isEmpty()) {
+            config.setProperty("ExecutionMode", options.get("execution"));
+        }
+
+        File work = java.nio.file.Files.createTempDirectory("peers").toFile();
+        File source = new File(work, "data.bin");
+        Swarm.writeRandomFile(source, size);
+        config.setProperty("ServerPort", "0");
+        config.setProperty("ChunkDir", new File(work, "spt") + File.separator);
+        config.setProperty("ClientNumber", String.valueOf(n));
+        config.setProperty("Seeder", "false");
+        config.setProperty("SeedId", "1");
+        config.setProperty("SeedCount", "1");
+
+        PrintStream report = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        boolean ok;
+        try {
+            int port = Swarm.startServer(classes, config, source);
+            PeerLoad load = new PeerLoad(n, new InetSocketAddress("127.0.0.1", port), window);
+            long deadline = System.nanoTime() + timeout;
+
+            // The server is up with its file, what follows is per peer
+            long heap = usedHeap();
+            long resident = residentBytes();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            long start = System.nanoTime();
+            load.connect(batch, deadline);
+            long connected = System.nanoTime() - start;
+
+            long heldHeap = usedHeap() - heap;
+            long heldResident = residentBytes() - resident;
+            int heldThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+
+            start = System.nanoTime();
+            load.download(deadline);
+            long downloaded = System.nanoTime() - start;
+
+            System.setOut(report);
+            ok = load.report(report, config, size, chunkSize, connected, heldHeap, heldResident,
+                    heldThreads, downloaded);
+        } finally {
+            System.setOut(report);
+            Swarm.delete(work);
+        }
+        // The server keeps listening, stop it
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Connects all the peers, at most batch at a time until they read the
+     * header, and leaves them held before the bitfield
+     */
+    private void connect(int batch, long deadline) throws IOException {
+        int n = peers.length - 1;
+        int opened = 0;
+        while (held + failed < n && System.nanoTime() < deadline) {
+            while (opened < n && opened - held - failed < batch) {
+                open(peers[++opened] = new Peer(opened));
+            }
+            poll();
+        }
+        joined = held;
+    }
+
+    /**
+     * Sends an empty bitfield for every held peer and reads the chunks until
+     * all the peers got the end marker
+     */
+    private void download(long deadline) throws IOException {
+        for (int i = 1; i < peers.length; i++) {
+            Peer peer = peers[i];
+            if (peer != null && peer.step == Step.HELD) {
+                peer.out.putInt(0);
+                peer.expect(Step.REMAINING, 4);
+                flush(peer);
+            }
+        }
+        while (done + failed < peers.length - 1 && System.nanoTime() < deadline) {
+            poll();
+        }
+    }
+
+    private void open(Peer peer) {
+        try {
+            peer.channel = SocketChannel.open();
+            peer.channel.configureBlocking(false);
+            peer.out.putInt(MAGIC).putInt(VERSION).putInt(peer.id).putInt(window);
+            if (peer.channel.connect(server)) {
+                peer.key = peer.channel.register(selector, 0, peer);
+                connected(peer);
+            } else {
+                peer.key = peer.channel.register(selector, SelectionKey.OP_CONNECT, peer);
+            }
+        } catch (IOException e) {
+            fail(peer, e.toString());
+        }
+    }
+
+    private void poll() throws IOException {
+        selector.select(1000);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Peer peer = (Peer) key.attachment();
+            try {
+                if (key.isConnectable() && peer.channel.finishConnect()) {
+                    connected(peer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(peer);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(peer);
+                }
+            } catch (IOException e) {
+                fail(peer, e.toString());
+            }
+        }
+    }
+
+    private void connected(Peer peer) throws IOException {
+        peer.expect(Step.NEIGHBOUR, 4);
+        flush(peer);
+    }
+
+    /**
+     * Writes what is left of the output, and waits for the socket to take
+     * the rest
+     */
+    private void flush(Peer peer) throws IOException {
+        peer.out.flip();
+        peer.channel.write(peer.out);
+        peer.out.compact();
+        peer.key.interestOps(peer.out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void read(Peer peer) throws IOException {
+        in.clear();
+        int read = peer.channel.read(in);
+        if (read < 0) {
+            fail(peer, "Peer " + peer.id + " closed by the server while reading " + peer.step);
+            return;
+        }
+        in.flip();
+        while (in.hasRemaining() && peer.step != Step.DONE && peer.step != Step.FAILED) {
+            if (peer.step == Step.HELD) {
+                fail(peer, "Peer " + peer.id + " got data before its bitfield");
+                return;
+            }
+            if (peer.skip > 0) {
+                int skipped = (int) Math.min(peer.skip, in.remaining());
+                in.position(in.position() + skipped);
+                peer.skip -= skipped;
+                if (peer.step == Step.DATA) {
+                    peer.bytes += skipped;
+                }
+                if (peer.skip == 0) {
+                    next(peer);
+                }
+            } else {
+                peer.value = (peer.value << 8) | (in.get() & 0xff);
+                if (++peer.have == peer.need) {
+                    next(peer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves on once a field was read whole, or skipped
+     */
+    private void next(Peer peer) throws IOException {
+        // The ints are signed
+        int value = (int) peer.value;
+        switch (peer.step) {
+            case NEIGHBOUR:
+                peer.expect(Step.NAME_LENGTH, 2);
+                break;
+            case NAME_LENGTH:
+                if (peer.value > 0) {
+                    peer.skip(Step.NAME, peer.value);
+                } else {
+                    peer.expect(Step.SIZE, 8);
+                }
+                break;
+            case NAME:
+                peer.expect(Step.SIZE, 8);
+                break;
+            case SIZE:
+                peer.expect(Step.CHUNK_NUM, 4);
+                break;
+            case CHUNK_NUM:
+                peer.expect(Step.NUM, 4);
+                break;
+            case NUM:
+                peer.expect(Step.HASH_NUM, 4);
+                break;
+            case HASH_NUM:
+                if (value > 0) {
+                    peer.skip(Step.HASHES, value * 32L);
+                } else {
+                    hold(peer);
+                }
+                break;
+            case HASHES:
+                hold(peer);
+                break;
+            case REMAINING:
+                peer.expect(Step.CHUNK_ID, 4);
+                break;
+            case CHUNK_ID:
+                if (value == 0) {
+                    peer.step = Step.DONE;
+                    peer.channel.close();
+                    done++;
+                } else {
+                    peer.expect(Step.LENGTH, 4);
+                }
+                break;
+            case LENGTH:
+                if (value < 0) {
+                    throw new IOException("Peer " + peer.id + " got a compressed chunk");
+                }
+                if (value > 0) {
+                    peer.skip(Step.DATA, value);
+                    break;
+                }
+                // An empty chunk has no data
+            case DATA:
+                // Acknowledge the chunks received so far, a newer count
+                // replaces one the socket did not take yet
+                peer.chunks++;
+                peer.out.clear();
+                peer.out.putInt(peer.chunks);
+                flush(peer);
+                peer.expect(Step.CHUNK_ID, 4);
+                break;
+            default:
+                throw new IOException("Peer " + peer.id + " read in step " + peer.step);
+        }
+    }
+
+    private void hold(Peer peer) {
+        peer.step = Step.HELD;
+        held++;
+    }
+
+    private void fail(Peer peer, String error) {
+        if (peer.step == Step.DONE || peer.step == Step.FAILED) {
+            return;
+        }
+        if (peer.step == Step.HELD || peer.step.compareTo(Step.HELD) > 0) {
+            held--;
+        }
+        peer.step = Step.FAILED;
+        failed++;
+        if (errors.size() < 5) {
+            errors.add(error);
+        }
+        try {
+            if (peer.channel != null) {
+                peer.channel.close();
+            }
+        } catch (IOException e) {
+            // Already failed
+        }
+    }
+
+    /**
+     * Prints the outcome of the run
+     *
+     * @return true if every peer got the end marker
+     */
+    private boolean report(PrintStream out, Properties config, long size, long chunkSize,
+                           long connected, long heap, long resident, int threads,
+                           long downloaded) {
+        int n = peers.length - 1;
+        int chunks = 0;
+        long bytes = 0;
+        for (int i = 1; i <= n; i++) {
+            if (peers[i] != null) {
+                chunks += peers[i].chunks;
+                bytes += peers[i].bytes;
+            }
+        }
+        out.println(String.format(Locale.ROOT,
+                "Server:    engine %s, execution %s",
+                config.getProperty("ServerEngine", "thread"),
+                config.getProperty("ExecutionMode", "platform")));
+        out.println(String.format(Locale.ROOT,
+                "File:      %.1f MB in %d chunks of %d KB, window %d",
+                size / Swarm.MB, (size + chunkSize - 1) / chunkSize, chunkSize >> 10, window));
+        out.println(String.format(Locale.ROOT,
+                "Connected: %d of %d peers in %.2f s",
+                joined, n, connected / 1e9));
+        out.println(String.format(Locale.ROOT,
+                "Held:      %+.1f MB heap (%.1f KB per peer), %+.1f MB resident, %+d threads",
+                heap / Swarm.MB, heap / 1024.0 / n, resident / Swarm.MB, threads));
+        out.println(String.format(Locale.ROOT,
+                "Download:  %d chunks, %.1f MB in %.2f s, %.1f MB/s",
+                chunks, bytes / Swarm.MB, downloaded / 1e9, bytes / Swarm.MB / (downloaded / 1e9)));
+        for (String error : errors) {
+            out.println("Error:     " + error);
+        }
+        if (done == n) {
+            out.println("All " + n + " peers complete");
+            return true;
+        }
+        out.println(done + " of " + n + " peers complete, " + failed + " failed");
+        return false;
+    }
+
+    /**
+     * @return Heap in use once the garbage is collected
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return Resident memory of the JVM (Linux), or 0
+     */
+    private static long residentBytes() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return 0;
+    }
+
+    /**
+     * @return The limit of open files, or 0 if unknown
+     */
+    private static long maxFiles() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os)
+                    .getMaxFileDescriptorCount();
+        }
+        return 0;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: java -cp swarm.jar swarm.PeerLoad [--peers 1000] [--size 256m]"
+                + " [--chunk-size 16k] [--window 16] [--batch 32]"
+                + " [--engine thread|nio] [--execution platform|virtual] [--timeout s]"
+                + " [--server-config file] [--server-classes jar]"
+                + " [--set server.Key=Value] [--verbose]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,564 @@
+package swarm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Runs one server and N clients in a single JVM over loopback links with
+ * emulated bandwidth, latency and loss, and reports how the file spread
+ *
+ * The server and the client are separate programs with classes of the same
+ * names, so every server and every client get a class loader of their own.
+ * Every connection goes through a {@link Link}: client i reaches the seed
+ * through link i->0 (seed s through i->0s with several seeds) and peer j
+ * through link i->j, so that the traffic of each pair is shaped and counted
+ * on its own.
+ *
+ * Run from the root of the repository after mvn -B package:
+ *
+ *     java -jar benchmarks/swarm/target/swarm.jar --clients 5 --size 20m \
+ *         --bandwidth 10m --latency 20 --loss 0.01
+ */
+public class Swarm {
+
+    // Options taking a value, with their defaults
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULTS.put("clients", "5");
+        DEFAULTS.put("seeds", "1");
+        DEFAULTS.put("size", "20m");
+        DEFAULTS.put("mode", "");
+        DEFAULTS.put("bandwidth", "0");
+        DEFAULTS.put("seed-bandwidth", "");
+        DEFAULTS.put("latency", "0");
+        DEFAULTS.put("loss", "0");
+        DEFAULTS.put("timeout", "600");
+        DEFAULTS.put("server-config", "server/config.properties");
+        DEFAULTS.put("client-config", "client1/config.properties");
+        DEFAULTS.put("server-classes", "");
+        DEFAULTS.put("client-classes", "");
+    }
+
+    // Name of the file distributed
+    private static final String FILENAME = "data.bin";
+
+    static final double MB = 1 << 20;
+
+    /**
+     * Outcome of a client
+     */
+    private static final class Peer {
+
+        // Time the download took, in ns, or -1 if it did not finish
+        volatile long time = -1;
+
+        // Why the client failed, or null
+        volatile String error;
+
+        // Links the client connected to the seeds through
+        final List<Link> seeds = new ArrayList<Link>();
+
+        // Links the client connected to other clients through
+        final List<Link> outgoing = new ArrayList<Link>();
+
+        // Links other clients connected to the client through
+        final List<Link> incoming = new ArrayList<Link>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        List<String> sets = new ArrayList<String>();
+        boolean verbose = false;
+        boolean keep = false;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--verbose")) {
+                verbose = true;
+            } else if (option.equals("--keep")) {
+                keep = true;
+            } else if (option.equals("--set") && i + 1 < args.length) {
+                sets.add(args[++i]);
+            } else if (option.startsWith("--") && DEFAULTS.containsKey(option.substring(2))
+                    && i + 1 < args.length) {
+                options.put(option.substring(2), args[++i]);
+            } else {
+                usage("Unknown option " + option);
+            }
+        }
+
+        int n = Integer.parseInt(options.get("clients"));
+        int seedCount = Integer.parseInt(options.get("seeds"));
+        long size = parseSize(options.get("size"));
+        long bandwidth = parseSize(options.get("bandwidth"));
+        int latency = Integer.parseInt(options.get("latency"));
+        double loss = Double.parseDouble(options.get("loss"));
+        long timeout = Long.parseLong(options.get("timeout")) * 1000000000L;
+        if (n < 1 || seedCount < 1 || size < 1 || latency < 0 || loss < 0 || loss >= 1) {
+            usage("Invalid option value");
+        }
+
+        // One rate for all the seeds, or one for each (the last one repeats)
+        String[] seedRates = options.get("seed-bandwidth").isEmpty()
+                ? new String[]{options.get("bandwidth")} : options.get("seed-bandwidth").split(",");
+        long[] seedBandwidth = new long[seedCount + 1];
+        for (int s = 1; s <= seedCount; s++) {
+            seedBandwidth[s] = parseSize(seedRates[Math.min(s, seedRates.length) - 1]);
+        }
+
+        File jar = new File(Swarm.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        File serverClasses = classes(options.get("server-classes"),
+                new File(jar.getParentFile(), "lib/server.jar"));
+        File clientClasses = classes(options.get("client-classes"),
+                new File(jar.getParentFile(), "lib/client.jar"));
+
+        Properties serverConfig = load(options.get("server-config"));
+        Properties clientConfig = load(options.get("client-config"));
+        // The clients would all take the metrics port of the config
+        clientConfig.setProperty("MetricsPort", "");
+        // The output is thrown away, and would be written after the report
+        if (!verbose) {
+            serverConfig.setProperty("LogLevel", "off");
+            clientConfig.setProperty("LogLevel", "off");
+        }
+        override(serverConfig, clientConfig, sets);
+        if (!options.get("mode").isEmpty()) {
+            clientConfig.setProperty("PeerMode", options.get("mode"));
+        }
+        boolean swarm = "swarm".equals(clientConfig.getProperty("PeerMode"));
+
+        // Everything lives in a temporary directory
+        File work = java.nio.file.Files.createTempDirectory("swarm").toFile();
+        File source = new File(work, "seed/" + FILENAME);
+        source.getParentFile().mkdirs();
+        writeRandomFile(source, size);
+
+        PrintStream report = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        // Start the seeds on any free port, each serving its shard
+        int[] serverPorts = new int[seedCount + 1];
+        for (int s = 1; s <= seedCount; s++) {
+            Properties config = new Properties();
+            config.putAll(serverConfig);
+            config.setProperty("ServerPort", "0");
+            config.setProperty("ChunkDir", new File(work, "seed/spt" + s) + File.separator);
+            config.setProperty("ClientNumber", String.valueOf(n));
+            config.setProperty("Seeder", "false");
+            config.setProperty("SeedId", String.valueOf(s));
+            config.setProperty("SeedCount", String.valueOf(seedCount));
+            if (s > 1) {
+                // Only the first seed opens the metrics endpoint
+                config.setProperty("MetricsPort", "");
+            }
+            serverPorts[s] = startServer(serverClasses, config, source);
+        }
+
+        // Links of every client to the seed and to the peers it downloads
+        // from, which are the next ones in the ring as in Client.findPeers
+        // The ports stay reserved while the links take theirs, any free port
+        ServerSocket[] reserved = reservePorts(n);
+        int[] ports = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            ports[i] = reserved[i].getLocalPort();
+        }
+        Peer[] peers = new Peer[n + 1];
+        for (int i = 1; i <= n; i++) {
+            peers[i] = new Peer();
+        }
+        List<Link> seedLinks = new ArrayList<Link>();
+        Properties[] configs = new Properties[n + 1];
+        for (int i = 1; i <= n; i++) {
+            Properties config = new Properties();
+            config.putAll(clientConfig);
+            File home = new File(work, "client" + i);
+            home.mkdirs();
+            config.setProperty("ClientId", String.valueOf(i));
+            config.setProperty("ClientNumber", String.valueOf(n));
+            config.setProperty("ChunkDir", new File(home, "spt") + File.separator);
+            config.setProperty("FileDir", new File(home, "file") + File.separator);
+            config.setProperty("StateFile", new File(home, "state.dat").getPath());
+            config.setProperty("ListenPort", "0");
+
+            StringBuilder seeds = new StringBuilder();
+            for (int s = 1; s <= seedCount; s++) {
+                Link seedLink = new Link(seedCount == 1 ? i + "->0" : i + "->0" + s,
+                        serverPorts[s], seedBandwidth[s], latency, loss);
+                seedLinks.add(seedLink);
+                peers[i].seeds.add(seedLink);
+                seeds.append(s > 1 ? "," : "").append("127.0.0.1:").append(seedLink.getPort());
+            }
+            config.setProperty("ServerIP", "127.0.0.1");
+            config.setProperty("ServerPort", String.valueOf(peers[i].seeds.get(0).getPort()));
+            config.setProperty("Seeds", seedCount == 1 ? "" : seeds.toString());
+
+            config.setProperty("ClientIP-" + i, "127.0.0.1");
+            config.setProperty("ClientPort-" + i, String.valueOf(ports[i]));
+            int k = swarm ? Integer.parseInt(config.getProperty("SwarmPeers", "0")) : 1;
+            if (k <= 0 || k > n - 1) {
+                k = n - 1;
+            }
+            for (int m = 1; m <= k; m++) {
+                int j = (i + m - 1) % n + 1;
+                Link link = new Link(i + "->" + j, ports[j], bandwidth, latency, loss);
+                peers[i].outgoing.add(link);
+                peers[j].incoming.add(link);
+                config.setProperty("ClientIP-" + j, "127.0.0.1");
+                config.setProperty("ClientPort-" + j, String.valueOf(link.getPort()));
+            }
+            configs[i] = config;
+        }
+
+        for (int i = 1; i <= n; i++) {
+            reserved[i].close();
+        }
+
+        // Start all the clients at once
+        final long start = System.nanoTime();
+        Thread[] threads = new Thread[n + 1];
+        for (int i = 1; i <= n; i++) {
+            threads[i] = startClient(clientClasses, configs[i], peers[i], start, "client " + i);
+        }
+        for (int i = 1; i <= n; i++) {
+            long left = timeout - (System.nanoTime() - start);
+            if (left > 0) {
+                threads[i].join(Math.max(1, left / 1000000));
+            }
+        }
+        System.setOut(report);
+
+        boolean ok = report(report, peers, seedLinks, source, work, n, seedCount, size, swarm,
+                bandwidth, seedBandwidth, latency, loss);
+
+        if (!keep) {
+            delete(work);
+        } else {
+            report.println("Files kept in " + work);
+        }
+        // The clients keep serving their chunks, stop them all
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Splits the file with the server and starts listening
+     *
+     * @return Port of the server
+     */
+    static int startServer(File classes, Properties config, File source)
+            throws Exception {
+        ClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()},
+                ClassLoader.getPlatformClassLoader());
+        Class<?> type = loader.loadClass("Server");
+        final Object server = type.getMethod("open", Properties.class, String.class)
+                .invoke(null, config, source.getPath());
+        int port = (Integer) type.getMethod("getPort").invoke(server);
+        final java.lang.reflect.Method listen = type.getMethod("startListening");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listen.invoke(server);
+                } catch (Exception e) {
+                    System.err.println("Server: " + cause(e));
+                }
+            }
+        }, "server");
+        thread.setDaemon(true);
+        thread.start();
+        return port;
+    }
+
+    /**
+     * Runs a client, which returns once it has the whole file
+     */
+    private static Thread startClient(final File classes, final Properties config,
+                                      final Peer peer, final long start, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()},
+                            ClassLoader.getPlatformClassLoader());
+                    loader.loadClass("Client").getConstructor(Properties.class)
+                            .newInstance(config);
+                    peer.time = System.nanoTime() - start;
+                } catch (Exception e) {
+                    peer.error = cause(e);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Prints the outcome of the run
+     *
+     * @return true if every client has the whole file
+     */
+    private static boolean report(PrintStream out, Peer[] peers, List<Link> seedLinks,
+                                  File source, File work, int n, int seedCount, long size,
+                                  boolean swarm, long bandwidth, long[] seedBandwidth,
+                                  int latency, double loss)
+            throws IOException {
+        out.printf(Locale.ROOT, "Swarm of %d clients, %s, %.1f MB file, %s mode%n",
+                n, seedCount == 1 ? "1 seed" : seedCount + " seeds", size / MB,
+                swarm ? "swarm" : "ring");
+        StringBuilder seedRates = new StringBuilder();
+        for (int s = 1; s <= seedCount; s++) {
+            seedRates.append(s > 1 ? ", " : "").append(rate(seedBandwidth[s]));
+        }
+        out.printf(Locale.ROOT, "Links: %s peers, %s seed, %d ms latency, %.2f%% loss%n%n",
+                rate(bandwidth), seedRates, latency, loss * 100);
+        out.printf("%-7s %9s %14s %18s %10s %15s  %s%n", "Client", "Time (s)",
+                "Received (MB)", "Throughput (MB/s)", "Sent (MB)", "From seed (MB)", "File");
+
+        boolean ok = true;
+        long slowest = 0;
+        for (int i = 1; i <= n; i++) {
+            Peer peer = peers[i];
+            long received = 0;
+            long sent = 0;
+            long fromSeed = 0;
+            for (Link link : peer.seeds) {
+                fromSeed += link.getBytesToInitiator();
+            }
+            received += fromSeed;
+            for (Link link : peer.outgoing) {
+                received += link.getBytesToInitiator();
+                sent += link.getBytesToTarget();
+            }
+            for (Link link : peer.incoming) {
+                received += link.getBytesToTarget();
+                sent += link.getBytesToInitiator();
+            }
+
+            String status;
+            if (peer.error != null) {
+                status = "failed: " + peer.error;
+            } else if (peer.time < 0) {
+                status = "timed out";
+            } else if (!sameContent(source, new File(work, "client" + i + "/file/" + FILENAME))) {
+                status = "differs";
+            } else {
+                status = "OK";
+            }
+            ok &= status.equals("OK");
+            slowest = Math.max(slowest, peer.time);
+
+            double seconds = peer.time / 1e9;
+            out.printf(Locale.ROOT, "%-7d %9s %14.1f %18s %10.1f %15.1f  %s%n", i,
+                    peer.time < 0 ? "-" : String.format(Locale.ROOT, "%.2f", seconds),
+                    received / MB,
+                    peer.time <= 0 ? "-" : String.format(Locale.ROOT, "%.2f", received / MB / seconds),
+                    sent / MB, fromSeed / MB, status);
+        }
+
+        long seedUpload = 0;
+        for (Link link : seedLinks) {
+            seedUpload += link.getBytesToInitiator();
+        }
+        out.println();
+        if (ok) {
+            out.printf(Locale.ROOT, "All clients complete after %.2f s%n", slowest / 1e9);
+        } else {
+            out.println("Not all clients have the file");
+        }
+        out.printf(Locale.ROOT, "Seed upload: %.1f MB (%.2f x the file)%n",
+                seedUpload / MB, (double) seedUpload / size);
+        return ok;
+    }
+
+    /**
+     * @return The classes given as option, or the default jar
+     */
+    private static File classes(String option, File fallback) {
+        File classes = option.isEmpty() ? fallback : new File(option);
+        if (!classes.exists()) {
+            usage("No classes at " + classes + ", run mvn -B package first");
+        }
+        return classes;
+    }
+
+    /**
+     * Applies the --set server.Key=Value and client.Key=Value options
+     */
+    private static void override(Properties server, Properties client, List<String> sets) {
+        for (String set : sets) {
+            int dot = set.indexOf('.');
+            int equals = set.indexOf('=');
+            if (dot < 0 || equals < dot) {
+                usage("Invalid --set " + set);
+            }
+            String program = set.substring(0, dot);
+            String key = set.substring(dot + 1, equals);
+            String value = set.substring(equals + 1);
+            if (program.equals("server")) {
+                server.setProperty(key, value);
+            } else if (program.equals("client")) {
+                client.setProperty(key, value);
+            } else {
+                usage("Invalid --set " + set);
+            }
+        }
+    }
+
+    /**
+     * Parses a size like 20m or 512k (powers of 1024)
+     */
+    static long parseSize(String value) {
+        value = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1L << 10;
+        } else if (value.endsWith("m")) {
+            unit = 1L << 20;
+        } else if (value.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return (long) (Double.parseDouble(value) * unit);
+    }
+
+    /**
+     * @return A rate in MB/s, or unlimited
+     */
+    private static String rate(long bytesPerSecond) {
+        return bytesPerSecond > 0
+                ? String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / MB) : "unlimited";
+    }
+
+    /**
+     * Reserves free ports for the clients to listen on, to be closed just
+     * before the clients start
+     *
+     * @return Sockets bound to the ports, by client id
+     */
+    private static ServerSocket[] reservePorts(int n) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[n + 1];
+        for (int i = 1; i <= n; i++) {
+            sockets[i] = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+        return sockets;
+    }
+
+    static Properties load(String filename) throws IOException {
+        Properties config = new Properties();
+        InputStream input = new FileInputStream(filename);
+        try {
+            config.load(input);
+        } finally {
+            input.close();
+        }
+        return config;
+    }
+
+    /**
+     * Writes a file of random bytes, the same for the same size
+     */
+    static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] buffer = new byte[1 << 16];
+        OutputStream output = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                output.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        if (!b.isFile() || a.length() != b.length()) {
+            return false;
+        }
+        InputStream x = new BufferedInputStream(new FileInputStream(a));
+        InputStream y = new BufferedInputStream(new FileInputStream(b));
+        try {
+            byte[] bx = new byte[1 << 16];
+            byte[] by = new byte[1 << 16];
+            int length;
+            while ((length = x.read(bx)) > 0) {
+                int read = 0;
+                while (read < length) {
+                    int r = y.read(by, read, length - read);
+                    if (r < 0) {
+                        return false;
+                    }
+                    read += r;
+                }
+                if (!Arrays.equals(bx, 0, length, by, 0, length)) {
+                    return false;
+                }
+            }
+            return y.read() < 0;
+        } finally {
+            x.close();
+            y.close();
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static String cause(Exception e) {
+        Throwable cause = e;
+        while (cause instanceof InvocationTargetException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause.toString();
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: java -jar swarm.jar [--clients 5] [--seeds 1] [--size 20m]"
+                + " [--mode ring|swarm] [--bandwidth 10m] [--seed-bandwidth 10m[,5m...]]"
+                + " [--latency ms] [--loss 0.01] [--timeout s]"
+                + " [--server-config file] [--client-config file]"
+                + " [--server-classes jar] [--client-classes jar]"
+                + " [--set server.Key=Value] [--set client.Key=Value] [--verbose] [--keep]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Verifies the received chunks against the SHA-256 hashes sent by the server
+ *
+ * The hashes are computed on a separate pool, so that verification does not
+ * slow down the thread receiving the chunks.
+ */
+public class ChunkVerifier {
+
+    /**
+     * Result of a verification
+     */
+    public interface Callback {
+
+        /**
+         * Called once a chunk is verified
+         *
+         * @param chunkId id of the chunk
+         * @param valid   true if the chunk matches its hash
+         */
+        void verified(int chunkId, boolean valid);
+    }
+
+    // Downloaded file
+    private final ChunkFile file;
+
+    // Pool computing the hashes
+    private final ThreadPoolExecutor pool;
+
+    // Time from receiving a chunk to its verification
+    private final Histogram latency = new Histogram();
+
+    /**
+     * Constructor
+     *
+     * @param file    Downloaded file
+     * @param threads Number of hashing threads
+     */
+    public ChunkVerifier(ChunkFile file, int threads) {
+        this.file = file;
+        this.pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Verifies a chunk on the pool
+     *
+     * If the server sent no hashes the chunk is accepted at once.
+     *
+     * @param chunkId  id of the chunk
+     * @param chunk    bytes of the chunk, from position to limit (not changed)
+     * @param callback called with the result
+     */
+    public void verify(final int chunkId, final ByteBuffer chunk, final Callback callback) {
+        if (!file.hasHashes()) {
+            callback.verified(chunkId, true);
+            return;
+        }
+        final long start = System.nanoTime();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid = Arrays.equals(hash(chunk.duplicate()), file.getHash(chunkId));
+                latency.recordSince(start);
+                if (!valid) {
+                    Log.error("Chunk " + chunkId + " is corrupted");
+                }
+                callback.verified(chunkId, valid);
+            }
+        });
+    }
+
+    /**
+     * @return Number of chunks waiting for verification
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return Time from receiving a chunk to its verification
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Stops the hashing threads once the queued chunks are verified
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Computes the hash of a chunk
+     */
+    private static byte[] hash(ByteBuffer chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(chunk);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
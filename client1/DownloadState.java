@@ -0,0 +1,231 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The state of a download saved to disk, so that an interrupted download
+ * can be resumed
+ *
+ * The state file holds the file description with its chunk size, the hashes
+ * of the chunks and the bitmap of the owned chunks. It is saved every
+ * [syncEvery] new chunks. The bitmap is taken first and the stored chunks
+ * are synced (chunk files included) before it is written, so the state file
+ * never claims a chunk which is not on the disk. The first save
+ * writes the whole state to a temporary file, synced and renamed over the old
+ * state; the header and the hashes never change after that, so the later
+ * saves only write the bitmap again in place. A bitmap torn by a crash mixes
+ * two saves, and every bit of either was on the disk when it was written.
+ */
+public class DownloadState implements ChunkBitmap.Listener {
+
+    // Written at the start of the state file
+    private static final int MAGIC = 0xC5105A7E;
+
+    // Path of the state file
+    private final String path;
+
+    // Number of new chunks between two saves
+    private final int syncEvery;
+
+    // Downloaded file
+    private ChunkFile file;
+
+    // Chunks owned
+    private ChunkBitmap chunkStatus;
+
+    // Storage of the received chunks
+    private ChunkStorage storage;
+
+    // Number of new chunks since the last save
+    private int unsaved;
+
+    // Offset of the bitmap words in the state file, -1 until it is written
+    private long bitmapOffset = -1;
+
+    /**
+     * Constructor
+     *
+     * @param path      Path of the state file
+     * @param syncEvery Number of new chunks between two saves
+     */
+    public DownloadState(String path, int syncEvery) {
+        this.path = path;
+        this.syncEvery = Math.max(1, syncEvery);
+    }
+
+    /**
+     * Loads the chunks owned by an earlier run
+     *
+     * @param file Downloaded file, as described by the server
+     * @return The owned chunks, or null if there is no state or it belongs
+     *         to another file
+     */
+    public ChunkBitmap load(ChunkFile file) {
+        File stateFile = new File(path);
+        if (!stateFile.exists()) {
+            return null;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (input.readInt() != MAGIC
+                    || !input.readUTF().equals(file.getFilename())
+                    || input.readLong() != file.getFileSize()
+                    || input.readInt() != file.getChunkNum()
+                    || input.readInt() != file.getChunkSize()) {
+                Log.warn("The saved state belongs to another file");
+                return null;
+            }
+
+            // The chunks must not have changed on the server
+            int hashNum = input.readInt();
+            if (hashNum != (file.hasHashes() ? file.getChunkNum() : 0)) {
+                Log.warn("The saved state belongs to another file");
+                return null;
+            }
+            byte[] hash = new byte[32];
+            for (int i = 1; i <= hashNum; i++) {
+                input.readFully(hash);
+                if (!Arrays.equals(hash, file.getHash(i))) {
+                    Log.warn("The saved state belongs to another file");
+                    return null;
+                }
+            }
+
+            ChunkBitmap bitmap = ChunkBitmap.read(input, file.getChunkNum());
+            Log.info("Resuming with " + bitmap.count() + " chunks");
+            return bitmap;
+
+        } catch (IOException e) {
+            Log.error("Cannot read the saved state: " + e.getMessage());
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts saving the state of a download
+     *
+     * @param file        Downloaded file
+     * @param chunkStatus Chunks owned
+     * @param storage     Storage of the received chunks
+     */
+    public void attach(ChunkFile file, ChunkBitmap chunkStatus, ChunkStorage storage) {
+        synchronized (this) {
+            this.file = file;
+            this.chunkStatus = chunkStatus;
+            this.storage = storage;
+        }
+        chunkStatus.addListener(this);
+    }
+
+    @Override
+    public void chunkAdded(int chunkId) {
+        boolean save;
+        synchronized (this) {
+            unsaved++;
+            save = unsaved >= syncEvery || chunkStatus.isComplete();
+        }
+        if (save) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the state to the disk
+     */
+    public synchronized void save() {
+        if (unsaved == 0) {
+            return;
+        }
+        unsaved = 0;
+
+        try {
+            // The chunks the state claims must be on the disk first: a chunk
+            // added after the bitmap is taken may not be synced yet
+            long[] words = chunkStatus.toWords();
+            storage.sync();
+            if (bitmapOffset < 0) {
+                writeState(words);
+            } else {
+                writeBitmap(words);
+            }
+        } catch (IOException e) {
+            Log.error("Cannot save the state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the whole state to a temporary file and renames it over the old
+     * state
+     *
+     * @param words bitmap of the owned chunks
+     */
+    private void writeState(long[] words) throws IOException {
+        File stateFile = new File(path);
+        File temp = new File(path + ".tmp");
+        long offset;
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(MAGIC);
+            output.writeUTF(file.getFilename());
+            output.writeLong(file.getFileSize());
+            output.writeInt(file.getChunkNum());
+            output.writeInt(file.getChunkSize());
+            if (file.hasHashes()) {
+                output.writeInt(file.getChunkNum());
+                for (int i = 1; i <= file.getChunkNum(); i++) {
+                    output.write(file.getHash(i));
+                }
+            } else {
+                output.writeInt(0);
+            }
+
+            // [number of words, words], as ChunkBitmap.read expects
+            output.writeInt(words.length);
+            offset = output.size();
+            for (long word : words) {
+                output.writeLong(word);
+            }
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(temp.toPath(), stateFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bitmapOffset = offset;
+    }
+
+    /**
+     * Writes the bitmap words over the ones of the last save
+     *
+     * @param words bitmap of the owned chunks
+     */
+    private void writeBitmap(long[] words) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * 8);
+        buffer.asLongBuffer().put(words);
+        RandomAccessFile stateFile = new RandomAccessFile(path, "rw");
+        try {
+            FileChannel channel = stateFile.getChannel();
+            long position = bitmapOffset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } finally {
+            stateFile.close();
+        }
+    }
+}
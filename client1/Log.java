@@ -0,0 +1,334 @@
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The console output of the program, written by a background thread
+ *
+ * The threads moving chunks only put a line into a bounded ring buffer and go
+ * on, a flusher thread writes the lines to System.out in batches. A line is
+ * a format with up to two "{}" numbers, so logging a chunk with a constant
+ * format does not build a string on the way. If the ring is full the line is
+ * dropped and counted, except warnings and errors, which are then written
+ * right away.
+ *
+ * The lines below LogLevel (debug, info, warn, error or off) are ignored,
+ * and the per-chunk events are limited to LogChunkRate per second (0 for no
+ * limit), the others are counted and reported once a second.
+ */
+public final class Log {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    // Names of the levels, in the config
+    private static final String[] LEVELS = {"debug", "info", "warn", "error", "off"};
+
+    // Number of lines the ring holds, a power of two
+    private static final int CAPACITY = 8192;
+
+    // Time the flusher waits for new lines, in nanoseconds
+    private static final long FLUSH_INTERVAL = 10000000L;
+
+    /**
+     * A line in the ring
+     */
+    private static final class Slot {
+
+        // Position of the line once it is written, or of the next line which
+        // may use the slot once it is read (as in a Vyukov bounded queue)
+        volatile long sequence;
+
+        int level;
+        String format;
+        int args;
+        long a;
+        long b;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    // The ring buffer
+    private static final Slot[] ring = new Slot[CAPACITY];
+
+    // Position of the next line written
+    private static final AtomicLong tail = new AtomicLong();
+
+    // Position of the next line read, guarded by the class
+    private static long head;
+
+    // Lines dropped because the ring was full
+    private static final LongAdder dropped = new LongAdder();
+
+    // Per-chunk events over the rate
+    private static final LongAdder suppressed = new LongAdder();
+
+    // Second of the per-chunk events counted, and their count in it
+    private static final AtomicLong window = new AtomicLong();
+
+    // Lowest level written
+    private static volatile int level = INFO;
+
+    // Maximum per-chunk events per second, 0 for no limit
+    private static volatile int chunkRate = 20;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Slot(i);
+        }
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long reported = System.nanoTime();
+                while (true) {
+                    boolean written = flush();
+                    long now = System.nanoTime();
+                    if (now - reported >= 1000000000L) {
+                        reportLost();
+                        reported = now;
+                    }
+                    if (!written) {
+                        LockSupport.parkNanos(FLUSH_INTERVAL);
+                    }
+                }
+            }
+        }, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        // Write what is left when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                reportLost();
+            }
+        }, "log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets up the log as in the config: LogLevel and LogChunkRate
+     *
+     * @param config Config of the program
+     */
+    public static void configure(Properties config) {
+        String name = config.getProperty("LogLevel", "info").trim().toLowerCase();
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equals(name)) {
+                level = i;
+            }
+        }
+        chunkRate = Math.min(0xfffff,
+                Integer.parseInt(config.getProperty("LogChunkRate", "20").trim()));
+    }
+
+    /**
+     * @param level a level
+     * @return true if the lines of the level are written
+     */
+    public static boolean isEnabled(int level) {
+        return level >= Log.level;
+    }
+
+    /**
+     * Logs a line for debugging
+     *
+     * @param message the line
+     */
+    public static void debug(String message) {
+        log(DEBUG, message, 0, 0, 0);
+    }
+
+    /**
+     * Logs a line
+     *
+     * @param message the line
+     */
+    public static void info(String message) {
+        log(INFO, message, 0, 0, 0);
+    }
+
+    /**
+     * Logs a warning, written as "Warning: message"
+     *
+     * @param message the line
+     */
+    public static void warn(String message) {
+        log(WARN, message, 0, 0, 0);
+    }
+
+    /**
+     * Logs an error, written as "Error: message"
+     *
+     * @param message the line
+     */
+    public static void error(String message) {
+        log(ERROR, message, 0, 0, 0);
+    }
+
+    /**
+     * Logs an event about a single chunk, like a chunk sent, at most
+     * LogChunkRate of them per second
+     *
+     * @param format the line, where each "{}" stands for a number
+     * @param a      the first number
+     * @param b      the second number
+     */
+    public static void chunk(String format, long a, long b) {
+        if (!isEnabled(INFO) || !admitChunk()) {
+            return;
+        }
+        log(INFO, format, 2, a, b);
+    }
+
+    /**
+     * Logs the progress of a long task every 10%
+     *
+     * @param label name of the task
+     * @param done  number of steps done, counting this one
+     * @param total number of steps
+     */
+    public static void progress(String label, long done, long total) {
+        if (done * 10 / total != (done - 1) * 10 / total) {
+            log(INFO, label + " {}%", 1, done * 100 / total, 0);
+        }
+    }
+
+    /**
+     * Counts a per-chunk event in the current second
+     *
+     * @return true if the event is under the rate
+     */
+    private static boolean admitChunk() {
+        int rate = chunkRate;
+        if (rate <= 0) {
+            return true;
+        }
+        long second = System.nanoTime() / 1000000000L;
+        while (true) {
+            long current = window.get();
+            long next;
+            if (current >> 20 != second) {
+                next = (second << 20) | 1;
+            } else if ((current & 0xfffff) < rate) {
+                next = current + 1;
+            } else {
+                suppressed.increment();
+                return false;
+            }
+            if (window.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts a line into the ring
+     */
+    private static void log(int level, String format, int args, long a, long b) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long position = tail.get();
+        Slot slot;
+        while (true) {
+            slot = ring[(int) position & (CAPACITY - 1)];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Full: warnings and errors are not lost
+                if (level >= WARN) {
+                    StringBuilder line = new StringBuilder();
+                    format(line, level, format, args, a, b);
+                    System.out.print(line);
+                } else {
+                    dropped.increment();
+                }
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        slot.level = level;
+        slot.format = format;
+        slot.args = args;
+        slot.a = a;
+        slot.b = b;
+        slot.sequence = position + 1;
+    }
+
+    /**
+     * Writes the lines in the ring
+     *
+     * @return true if there was any
+     */
+    private static synchronized boolean flush() {
+        StringBuilder lines = new StringBuilder();
+        while (true) {
+            Slot slot = ring[(int) head & (CAPACITY - 1)];
+            if (slot.sequence != head + 1) {
+                break;
+            }
+            format(lines, slot.level, slot.format, slot.args, slot.a, slot.b);
+            slot.format = null;
+            slot.sequence = head + CAPACITY;
+            head++;
+        }
+        if (lines.length() == 0) {
+            return false;
+        }
+        System.out.print(lines);
+        System.out.flush();
+        return true;
+    }
+
+    /**
+     * Reports the lines which were not written
+     */
+    private static void reportLost() {
+        long count = suppressed.sumThenReset();
+        if (count > 0) {
+            log(INFO, "({} chunk events not shown)", 1, count, 0);
+        }
+        count = dropped.sumThenReset();
+        if (count > 0) {
+            log(WARN, "{} lines dropped, the log is full", 1, count, 0);
+        }
+        flush();
+    }
+
+    /**
+     * Appends a line, with its numbers
+     */
+    private static void format(StringBuilder out, int level, String format, int args,
+                               long a, long b) {
+        if (level == ERROR) {
+            out.append("Error: ");
+        } else if (level == WARN) {
+            out.append("Warning: ");
+        }
+        int from = 0;
+        for (int i = 0; i < args; i++) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            out.append(format, from, at).append(i == 0 ? a : b);
+            from = at + 2;
+        }
+        out.append(format, from, format.length()).append('\n');
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The task to download chunks from one neighbour client
+ *
+ * In ring mode the neighbour selects the chunks it sends. In swarm mode the
+ * chunks are selected here from the neighbour's bitfield, and claimed in a
+ * bitmap shared by all the downloaders, so that every neighbour is asked for
+ * different chunks.
+ */
+public class PeerDownloader implements Runnable, ChunkVerifier.Callback {
+
+    // The client saving the chunks
+    private final Client client;
+
+    // Config of the program
+    private final Properties config;
+
+    // Downloaded file
+    private final ChunkFile file;
+
+    // Bitmap of chunks status
+    private final ChunkBitmap chunkStatus;
+
+    // Chunks owned or requested from any neighbour (null in ring mode)
+    private final ChunkBitmap claimed;
+
+    // Strategy to select the chunks to request (null in ring mode)
+    private final ChunkSelector selector;
+
+    // Id of the neighbour client
+    private final int neighbourId;
+
+    // Address of the neighbour client
+    private final InetSocketAddress address;
+
+    // Chunks requested from this neighbour and not received yet (swarm mode)
+    private final List<Integer> requested;
+
+    // Time each request not answered yet was sent, oldest first (the
+    // neighbour answers the requests in order)
+    private final Deque<Long> requestTimes = new ArrayDeque<Long>();
+
+    // Guards the output, the requested chunks and the outstanding requests,
+    // which the verifier also uses when a chunk is corrupted
+    private final Object lock = new Object();
+
+    // Neighbour connection
+    private volatile Socket socket;
+
+    // Output of the connection
+    private DataOutputStream output;
+
+    // Chunk status of the neighbour
+    private ChunkBitmap neighbourStatus;
+
+    // Number of requests not answered yet
+    private int outstanding;
+
+    // Codec the neighbour compresses the chunks with, or null
+    private ChunkCodec codec;
+
+    /**
+     * Constructor
+     *
+     * @param client      The client saving the chunks
+     * @param config      Config of the program
+     * @param file        Downloaded file
+     * @param chunkStatus Bitmap of chunks status
+     * @param claimed     Chunks owned or requested (null in ring mode)
+     * @param selector    Strategy to select the chunks (null in ring mode)
+     * @param neighbourId Id of the neighbour client
+     * @param address     Address of the neighbour client
+     */
+    public PeerDownloader(Client client, Properties config, ChunkFile file, ChunkBitmap chunkStatus,
+                          ChunkBitmap claimed, ChunkSelector selector, int neighbourId,
+                          InetSocketAddress address) {
+        this.client = client;
+        this.config = config;
+        this.file = file;
+        this.chunkStatus = chunkStatus;
+        this.claimed = claimed;
+        this.selector = selector;
+        this.neighbourId = neighbourId;
+        this.address = address;
+        this.requested = new ArrayList<Integer>();
+    }
+
+    /**
+     * Runs the task
+     */
+    public void run() {
+        // Try to connect to the neighbour
+        while (socket == null && !chunkStatus.isComplete()) {
+            try {
+                socket = new Socket(address.getHostString(), address.getPort());
+            } catch (IOException e) {
+                Log.info("connect to " + address.getHostString() + ":" + address.getPort()
+                        + " is refused, retry after 5 seconds");
+                sleep(5000);
+            }
+        }
+        if (socket == null) {
+            return;
+        }
+        Log.info("Connected with client " + neighbourId);
+
+        try {
+            download();
+        } catch (IOException e) {
+            // Closed on purpose once all the chunks are received
+            if (!chunkStatus.isComplete()) {
+                Log.error(e.getMessage());
+            }
+        } finally {
+            // Give the chunks still requested from this neighbour to the others
+            synchronized (lock) {
+                if (claimed != null) {
+                    for (int chunkId : requested) {
+                        claimed.clear(chunkId);
+                    }
+                }
+                client.getMetrics().requests(-requestTimes.size());
+                requestTimes.clear();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Downloads chunks until all the chunks are owned
+     */
+    private void download() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        ReadableByteChannel channel = Channels.newChannel(input);
+        output = new DataOutputStream(socket.getOutputStream());
+        LongAdder bytesReceived = client.getMetrics().bytesReceived("client " + neighbourId);
+
+        // Offer the codecs the neighbour may compress the chunks with, then
+        // send the chunk status to the neighbour once
+        int codecs = Compression.offer(config);
+        ChunkBitmap announced = chunkStatus.copy();
+        synchronized (lock) {
+            if (codecs != 0) {
+                output.writeByte(Protocol.COMPRESS);
+                output.writeInt(codecs);
+            }
+            output.writeByte(Protocol.BITFIELD);
+            announced.write(output);
+        }
+
+        // Number of requests kept in flight
+        int window = Integer.parseInt(config.getProperty("RequestWindow", "1"));
+
+        // Milliseconds to wait for the neighbour before selecting again
+        // (swarm mode), chunks claimed by another downloader may have been
+        // given back in the meantime
+        int reselect = Integer.parseInt(config.getProperty("ReselectInterval", "500"));
+
+        // While not finished
+        while (!chunkStatus.isComplete()) {
+            int timeout;
+            synchronized (lock) {
+                // Tell the neighbour about the chunks received from somewhere else
+                sendHaves(output, announced);
+
+                // Keep [window] requests in flight
+                if (claimed == null) {
+                    // Never more than the number of chunks still missing
+                    int missing = file.getChunkNum() - chunkStatus.count();
+                    while (outstanding < window && outstanding < missing) {
+                        output.writeByte(Protocol.REQUEST);
+                        requestSent();
+                    }
+                } else {
+                    // Only chunks nobody else is asked for
+                    while (outstanding < window) {
+                        int chunkId = selectChunk();
+                        if (chunkId < 0) {
+                            break;
+                        }
+                        output.writeByte(Protocol.REQUEST_CHUNK);
+                        output.writeInt(chunkId);
+                        requested.add(chunkId);
+                        requestSent();
+                    }
+                }
+                output.flush();
+                timeout = claimed != null && outstanding < window ? reselect : 0;
+            }
+
+            // Read the next message. If there is nothing to ask this
+            // neighbour for, this blocks until it announces a new chunk, or
+            // in swarm mode until the next selection.
+            int type = readType(input, timeout);
+            if (type >= 0) {
+                readMessage(type, input, channel, announced, bytesReceived);
+            }
+        }
+    }
+
+    /**
+     * Reads the type of the next message
+     *
+     * @param input   input of the connection
+     * @param timeout milliseconds to wait for it, 0 for no limit
+     * @return The type, or -1 if none came in time
+     */
+    private int readType(DataInputStream input, int timeout) throws IOException {
+        if (timeout <= 0) {
+            return input.readByte();
+        }
+        socket.setSoTimeout(timeout);
+        try {
+            return input.readByte();
+        } catch (SocketTimeoutException e) {
+            return -1;
+        } finally {
+            // The rest of a message is never cut short
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Counts a request sent, the caller holds the lock
+     */
+    private void requestSent() {
+        outstanding++;
+        requestTimes.add(System.nanoTime());
+        client.getMetrics().requests(1);
+    }
+
+    /**
+     * Selects and claims a chunk the neighbour owns and nobody asked for
+     *
+     * @return Id of the chunk
+     *         or -1 if not found
+     */
+    private int selectChunk() {
+        if (neighbourStatus == null) {
+            return -1;
+        }
+        while (true) {
+            int chunkId = selector.select(neighbourStatus, claimed);
+            if (chunkId < 0 || claimed.set(chunkId)) {
+                return chunkId;
+            }
+            // Claimed by another downloader in the meantime, try again
+        }
+    }
+
+    /**
+     * Reads and handles a message of the neighbour
+     *
+     * @param type          type of the message, already read
+     * @param input         input of the connection
+     * @param channel       channel reading from the same input, for the chunks
+     * @param announced     chunks the neighbour knows I own, updated
+     * @param bytesReceived bytes of the chunks received from the neighbour
+     */
+    private void readMessage(int type, DataInputStream input, ReadableByteChannel channel,
+                             ChunkBitmap announced, LongAdder bytesReceived)
+            throws IOException {
+        if (type == Protocol.BITFIELD) {
+            // Read the chunk status of the neighbour
+            neighbourStatus = ChunkBitmap.read(input, file.getChunkNum());
+
+        } else if (type == Protocol.COMPRESS) {
+            // The codec of the chunks sent from now on
+            codec = Compression.codec(input.readInt());
+
+        } else if (type == Protocol.HAVE) {
+            // The neighbour received a new chunk
+            int chunkId = file.checkChunkId(input.readInt());
+            if (neighbourStatus == null) {
+                throw new IOException("Chunk " + chunkId + " announced before the bitfield");
+            }
+            neighbourStatus.set(chunkId);
+
+        } else if (type == Protocol.PIECE) {
+            // A negative id refuses the chunk
+            int chunkId = input.readInt();
+            file.checkChunkId(Math.abs(chunkId));
+            long start = System.nanoTime();
+            Long requestTime;
+            synchronized (lock) {
+                outstanding--;
+                requested.remove(Integer.valueOf(Math.abs(chunkId)));
+                requestTime = requestTimes.poll();
+                client.getMetrics().requests(-1);
+            }
+            if (chunkId > 0) {
+                // Verify and save the chunk to the file system
+                announced.set(chunkId);
+                int length = client.saveChunk(input, channel, chunkId, codec, this);
+                client.getMetrics().chunkReceived(bytesReceived, length, start);
+                if (requestTime != null) {
+                    client.getMetrics().requestAnswered(requestTime);
+                }
+                Log.chunk("Received chunk {} from client {}", chunkId, neighbourId);
+            } else if (chunkId < 0 && claimed != null) {
+                // The neighbour refused the chunk, let somebody else send it
+                claimed.clear(-chunkId);
+            }
+
+        } else {
+            throw new IOException("Invalid message " + type);
+        }
+    }
+
+    /**
+     * Called once a received chunk is verified
+     *
+     * @param chunkId id of the chunk
+     * @param valid   true if the chunk matches its hash
+     */
+    @Override
+    public void verified(int chunkId, boolean valid) {
+        if (valid) {
+            return;
+        }
+        try {
+            synchronized (lock) {
+                // Tell the neighbour I do not own the chunk
+                output.writeByte(Protocol.CORRUPT);
+                output.writeInt(chunkId);
+
+                // In swarm mode the chunk is still claimed by this
+                // downloader, ask the neighbour for it again
+                if (claimed != null) {
+                    output.writeByte(Protocol.REQUEST_CHUNK);
+                    output.writeInt(chunkId);
+                    requested.add(chunkId);
+                    requestSent();
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a "have" message for every chunk the neighbour does not know
+     * I own
+     *
+     * @param output    output of the connection
+     * @param announced chunks the neighbour knows I own, updated
+     */
+    private void sendHaves(DataOutputStream output, ChunkBitmap announced)
+            throws IOException {
+        long[] haves = chunkStatus.missingIn(announced);
+        for (int i = 0; i < haves.length; i++) {
+            long word = haves[i];
+            while (word != 0) {
+                int chunkId = i * 64 + Long.numberOfTrailingZeros(word) + 1;
+                word &= word - 1;
+
+                output.writeByte(Protocol.HAVE);
+                output.writeInt(chunkId);
+                announced.set(chunkId);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, which also stops a blocked download
+     */
+    public void close() {
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Sleeps for a specified milliseconds
+     */
+    private void sleep(long millisecond) {
+        try {
+            Thread.sleep(millisecond);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Constants of the protocol between the server and the clients
+ */
+public class Protocol {
+
+    // Sent instead of the client Id by clients which use the extended handshake.
+    // Old clients send their client Id (always positive) as the first int.
+    public static final int MAGIC = 0xC5106C01;
+
+    // Version of the extended handshake
+    // (2: the header carries the chunk hashes and the client may ask for
+    // a chunk again,
+    // 3: the client tells which chunks it already owns after the header,
+    // 4: the chunks end with a chunk Id 0 instead of being counted,
+    // 5: the server gives out Ids and the members of the swarm,
+    // 6: several seeds, each serving a shard,
+    // 7: the header lists the files of a directory,
+    // 8: the header carries the chunk size,
+    // 9: the chunks may be compressed)
+    public static final int VERSION = 9;
+
+    // Sent by a seed instead of a chunk Id when it has nothing more to send
+    // until the client asks for more (version 6)
+    public static final int IDLE = Integer.MIN_VALUE;
+
+    // [SEND_CHUNKS, count, chunkIds...] asks a seed for chunks outside its
+    // share (version 6)
+    public static final int SEND_CHUNKS = Integer.MIN_VALUE;
+
+    // [SKIP_CHUNKS, count, chunkIds...] tells a seed not to send chunks the
+    // client gets from another seed (version 6)
+    public static final int SKIP_CHUNKS = Integer.MIN_VALUE + 1;
+
+    // [DONE] tells a seed that the client needs no more chunks (version 6)
+    public static final int DONE = Integer.MIN_VALUE + 2;
+
+    // Messages between a client and the neighbour it downloads from.
+    // [BITFIELD, number of words, words] once after connecting, both ways
+    public static final byte BITFIELD = 1;
+
+    // [HAVE, chunkId] when a chunk was received from somewhere else, both ways
+    public static final byte HAVE = 2;
+
+    // [REQUEST] (ring mode), answered with a PIECE as soon as the neighbour
+    // owns a chunk I do not own. Several requests may be in flight.
+    public static final byte REQUEST = 3;
+
+    // [REQUEST_CHUNK, chunkId] (swarm mode), answered with a PIECE
+    public static final byte REQUEST_CHUNK = 4;
+
+    // [PIECE, chunkId, length, bytes], or [PIECE, -chunkId] if refused
+    public static final byte PIECE = 5;
+
+    // [CORRUPT, chunkId] when a received chunk failed verification,
+    // the neighbour may send it again
+    public static final byte CORRUPT = 6;
+
+    // [COMPRESS, codecs] offers the codecs I can decompress, sent first by
+    // a downloader which has Compression set, and [COMPRESS, codec] answers
+    // with the codec of the PIECEs after it (Compression.NONE for none).
+    // A compressed PIECE is [PIECE, chunkId, -length, compressed bytes].
+    public static final byte COMPRESS = 7;
+
+    /**
+     * Extended handshake (client to server):
+     * [MAGIC, VERSION, clientId, window]
+     *
+     * window is the number of chunks the server may send before it has to wait
+     * for an acknowledgement. The client acknowledges with the cumulative
+     * number of chunks received so far (int), or with -chunkId if the chunk
+     * failed verification and has to be sent again (version 2).
+     *
+     * Version 2 header (server to client) ends with
+     * [number of hashes, SHA-256 of chunk 1, ..., SHA-256 of chunk n],
+     * the number of hashes is 0 if the server does not hash the chunks.
+     *
+     * Version 3: after the header the client sends [number of words, words]
+     * with the chunks it already owns (a resumed download), the server
+     * answers with the number of chunks it will really send.
+     *
+     * Version 4: the server may send more chunks than announced (the chunks of
+     * clients which stalled), the last chunk is followed by [0]. The server
+     * sends [0] once all the chunks are acknowledged, so the client has to
+     * acknowledge as soon as it has verified all the chunks it read.
+     *
+     * Version 5: the handshake ends with [listenPort], the port the client
+     * serves other clients on, and clientId may be 0 to get an Id from the
+     * server. The header starts with [clientId]. After the chunks the client
+     * keeps the connection open and stays a member of the swarm until it
+     * closes it. It may send [0] to get the other members,
+     * [count, (clientId, host UTF, port)...] in ring order after itself.
+     *
+     * Version 6: every seed serves a shard of the chunks, the header ends with
+     * [firstChunk, lastChunk] of the shard. The client downloads from all the
+     * seeds at once. Once a seed has sent its share it sends [IDLE] instead of
+     * a chunk Id and waits: the client may move chunks from a slower seed to
+     * it with SKIP_CHUNKS and SEND_CHUNKS, or end with DONE. The acknowledge
+     * ints of the client may be these messages too.
+     *
+     * Version 7: the header ends with [number of files, (path, size)...], the
+     * files laid end to end in this order make up the chunks. A single file
+     * is a list of one file.
+     *
+     * Version 8: the header ends with [chunkSize], chosen by the server for
+     * the file. Older clients take ChunkSize from their own config and are
+     * only served if it is the chunk size of the server.
+     *
+     * Version 9: the handshake ends with [codecs], a bit (1 << id) for every
+     * codec the client can decompress (see Compression), and the header ends
+     * with [codec], the codec the server picked or Compression.NONE. With a
+     * codec, a chunk may be sent compressed as [chunkId, -length, compressed
+     * bytes]; chunks which do not compress are still sent raw.
+     *
+     * Old handshake (client to server): [clientId]
+     * The server waits for an "OK" (UTF) after every chunk.
+     */
+    private Protocol() {
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The download from one seed server
+ *
+ * The seed sends its share of the chunks of its shard. The chunks are
+ * acknowledged once verified, at least every half window and whenever no
+ * chunk is waiting for verification, so that the seed never stalls.
+ * Corrupted chunks are asked for again. Once the seed has sent its share it
+ * tells so, and the SeedBalancer decides what it sends next.
+ */
+public class SeedConnection implements Runnable, ChunkVerifier.Callback {
+
+    // The client saving the chunks
+    private final Client client;
+
+    // Address of the seed, for the messages
+    private final String name;
+
+    // Seed connection
+    private final Socket socket;
+
+    // Input of the connection
+    private final DataInputStream input;
+
+    // Output of the connection, guarded by this
+    private final DataOutputStream output;
+
+    // Number of chunks the seed may send without acknowledgement
+    private final int window;
+
+    // Decides what the seed sends once it has sent its share
+    private SeedBalancer balancer;
+
+    // Header of the seed
+    private int clientId;
+    private int neighbourId;
+    private String filename;
+    private long fileSize;
+    private int chunkNum;
+    private byte[][] hashes;
+    private int firstChunk;
+    private int lastChunk;
+    private Manifest manifest;
+    private int chunkSize;
+    private ChunkCodec codec;
+
+    // Number of chunks the seed is expected to send
+    private int expected;
+
+    // Chunks the seed was told to skip (bit id)
+    private final BitSet skipped = new BitSet();
+
+    // Number of chunks read
+    private int received;
+
+    // Number of chunks verified
+    private int checked;
+
+    // Number of valid chunks
+    private int valid;
+
+    // Time the first chunk was read, in nanoseconds
+    private long startTime;
+
+    // true while the seed has nothing more to send
+    private boolean idle;
+
+    // true once the seed was told that no more chunks are needed
+    private boolean done;
+
+    /**
+     * Constructor, connects to the seed
+     *
+     * @param client The client saving the chunks
+     * @param host   Address of the seed
+     * @param port   Port of the seed
+     * @param window Number of chunks the seed may send without acknowledgement
+     */
+    public SeedConnection(Client client, String host, int port, int window) throws IOException {
+        this.client = client;
+        this.name = host + ":" + port;
+        this.window = window;
+        this.socket = new Socket(host, port);
+        this.input = new DataInputStream(socket.getInputStream());
+        this.output = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Sends the handshake and reads the header of the seed
+     *
+     * @param clientId   Id of the client, 0 to get one from the seed
+     * @param listenPort Port other clients connect to
+     * @param codecs     Codecs the chunks may be compressed with (see
+     *                   Compression.offer)
+     */
+    public void open(int clientId, int listenPort, int codecs) throws IOException {
+        // Send the handshake [MAGIC, VERSION, clientId, window, listenPort, codecs]
+        synchronized (this) {
+            output.writeInt(Protocol.MAGIC);
+            output.writeInt(Protocol.VERSION);
+            output.writeInt(clientId);
+            output.writeInt(window);
+            output.writeInt(listenPort);
+            output.writeInt(codecs);
+            output.flush();
+        }
+
+        // Read clientId, neighbourId, filename, file size, totalChunks, sendChunks
+        this.clientId = input.readInt();
+        neighbourId = input.readInt();
+        filename = input.readUTF();
+        fileSize = input.readLong();
+        chunkNum = input.readInt();
+        input.readInt();
+
+        // Read the hashes of the chunks
+        int hashNum = input.readInt();
+        if (hashNum > 0) {
+            hashes = new byte[hashNum + 1][];
+            for (int i = 1; i <= hashNum; i++) {
+                hashes[i] = new byte[32];
+                input.readFully(hashes[i]);
+            }
+        }
+
+        // Read the shard of the seed
+        firstChunk = input.readInt();
+        lastChunk = input.readInt();
+
+        // Read the files the chunks are cut out of and the chunk size
+        manifest = Manifest.read(input);
+        chunkSize = input.readInt();
+        if (chunkSize <= 0) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+
+        // Read the codec the seed compresses the chunks with
+        codec = Compression.codec(input.readInt());
+        if (codec != null) {
+            Log.info("Seed " + name + " sends the chunks with " + codec.getName()
+                    + " compression");
+        }
+    }
+
+    /**
+     * Tells the seed which chunks I already own, it only sends the others
+     *
+     * @param chunkStatus Chunks owned
+     * @param balancer    Decides what the seed sends once it has sent its share
+     * @return Number of chunks the seed will send
+     */
+    public int start(ChunkBitmap chunkStatus, SeedBalancer balancer) throws IOException {
+        this.balancer = balancer;
+        synchronized (this) {
+            chunkStatus.write(output);
+            output.flush();
+        }
+        int n = input.readInt();
+        synchronized (this) {
+            expected = n;
+        }
+        Log.info("I will receive " + n + " chunks from seed " + name
+                + " (shard " + firstChunk + " to " + lastChunk + ")");
+        return n;
+    }
+
+    /**
+     * Reads the chunks until the seed sends the chunk Id 0
+     */
+    public void run() {
+        LongAdder bytesReceived = client.getMetrics().bytesReceived("seed " + name);
+        String receivedFormat = "Received chunk {} from seed " + name;
+        try {
+            ReadableByteChannel channel = Channels.newChannel(input);
+            while (true) {
+                // Read chunkId
+                int chunkId = input.readInt();
+                if (chunkId == 0) {
+                    break;
+                }
+                if (chunkId == Protocol.IDLE) {
+                    synchronized (this) {
+                        idle = true;
+                    }
+                    balancer.idle(this);
+                    continue;
+                }
+                long start = System.nanoTime();
+                synchronized (this) {
+                    if (received == 0) {
+                        startTime = start;
+                    }
+                    received++;
+                    if (skipped.get(chunkId)) {
+                        // Sent before the seed read the skip, which it ignored
+                        skipped.clear(chunkId);
+                        expected++;
+                    }
+                }
+                // Save the chunk to the file system
+                int length = client.saveChunk(input, channel, chunkId, codec, this);
+                client.getMetrics().chunkReceived(bytesReceived, length, start);
+                Log.chunk(receivedFormat, chunkId, 0);
+            }
+            Log.info("All the chunks from seed " + name + " are received");
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+            synchronized (this) {
+                idle = true;
+                done = true;
+            }
+            balancer.idle(this);
+        }
+    }
+
+    @Override
+    public synchronized void verified(int chunkId, boolean ok) {
+        checked++;
+        try {
+            if (ok) {
+                // Tell the seed how many valid chunks I have received
+                valid++;
+                if (valid % Math.max(1, window / 2) == 0 || checked == received) {
+                    output.writeInt(valid);
+                    output.flush();
+                }
+            } else {
+                // Ask for the chunk again
+                output.writeInt(-chunkId);
+                output.flush();
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the seed for chunks outside its share
+     *
+     * @param chunkIds ids of the chunks
+     */
+    public synchronized void sendChunks(List<Integer> chunkIds) throws IOException {
+        writeChunks(Protocol.SEND_CHUNKS, chunkIds);
+        expected += chunkIds.size();
+        idle = false;
+    }
+
+    /**
+     * Tells the seed not to send chunks which come from another seed
+     *
+     * @param chunkIds ids of the chunks
+     */
+    public synchronized void skipChunks(List<Integer> chunkIds) throws IOException {
+        writeChunks(Protocol.SKIP_CHUNKS, chunkIds);
+        expected -= chunkIds.size();
+        for (int chunkId : chunkIds) {
+            skipped.set(chunkId);
+        }
+    }
+
+    /**
+     * Writes [type, count, chunkIds...]
+     */
+    private void writeChunks(int type, List<Integer> chunkIds) throws IOException {
+        output.writeInt(type);
+        output.writeInt(chunkIds.size());
+        for (int chunkId : chunkIds) {
+            output.writeInt(chunkId);
+        }
+        output.flush();
+    }
+
+    /**
+     * Tells the seed that no more chunks are needed
+     */
+    public synchronized void finish() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            output.writeInt(Protocol.DONE);
+            output.flush();
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+        }
+    }
+
+    /**
+     * @return Number of chunks the seed is still expected to send
+     */
+    public synchronized int remaining() {
+        return Math.max(0, expected - received);
+    }
+
+    /**
+     * @return Measured number of chunks per second, 0 before the first chunk
+     */
+    public synchronized double rate() {
+        long elapsed = System.nanoTime() - startTime;
+        if (received == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return received * 1e9 / elapsed;
+    }
+
+    /**
+     * @return true while the seed has nothing more to send
+     */
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Closes the connection
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * @return Input of the connection
+     */
+    public DataInputStream getInput() {
+        return input;
+    }
+
+    /**
+     * @return Output of the connection
+     */
+    public DataOutputStream getOutput() {
+        return output;
+    }
+
+    /**
+     * @return Address of the seed
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Id of the client given by the seed
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return Id of the neighbour client in the ring
+     */
+    public int getNeighbourId() {
+        return neighbourId;
+    }
+
+    /**
+     * @return The file described by the seed
+     */
+    public ChunkFile getFile() {
+        return new ChunkFile(chunkNum, fileSize, filename, hashes, manifest, chunkSize);
+    }
+
+    /**
+     * @return First chunk of the shard of the seed
+     */
+    public int getFirstChunk() {
+        return firstChunk;
+    }
+
+    /**
+     * @return Last chunk of the shard of the seed
+     */
+    public int getLastChunk() {
+        return lastChunk;
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Selects the missing chunk with the lowest id
+ */
+public class SequentialSelector implements ChunkSelector {
+
+    @Override
+    public int select(ChunkBitmap source, ChunkBitmap target) {
+        long[] candidates = source.missingIn(target);
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i] != 0) {
+                return i * 64 + Long.numberOfTrailingZeros(candidates[i]) + 1;
+            }
+        }
+        return -1;
+    }
+}
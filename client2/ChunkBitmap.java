@@ -0,0 +1,196 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A bitmap of chunks status, one bit per chunk (set for owned chunk)
+ *
+ * Chunk ids start from 1, chunk i is stored in bit (i - 1).
+ */
+public class ChunkBitmap {
+
+    // Number of chunks
+    private final int chunkNum;
+
+    // Bits of the chunks
+    private final long[] words;
+
+    // Notified when a chunk is marked as owned for the first time
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Listener of new chunks
+     */
+    public interface Listener {
+
+        /**
+         * Called when a chunk is marked as owned for the first time
+         *
+         * @param chunkId id of the chunk
+         */
+        void chunkAdded(int chunkId);
+    }
+
+    /**
+     * Constructor of an empty bitmap
+     *
+     * @param chunkNum Number of chunks
+     */
+    public ChunkBitmap(int chunkNum) {
+        this.chunkNum = chunkNum;
+        this.words = new long[(chunkNum + 63) / 64];
+    }
+
+    /**
+     * @return Number of chunks
+     */
+    public int getChunkNum() {
+        return chunkNum;
+    }
+
+    /**
+     * @param chunkId id of the chunk
+     * @return true if the chunk is owned
+     */
+    public synchronized boolean get(int chunkId) {
+        int bit = chunkId - 1;
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Marks a chunk as owned
+     *
+     * @param chunkId id of the chunk
+     * @return true if the chunk was not owned before
+     */
+    public boolean set(int chunkId) {
+        int bit = chunkId - 1;
+        long mask = 1L << bit;
+        synchronized (this) {
+            if ((words[bit >>> 6] & mask) != 0) {
+                return false;
+            }
+            words[bit >>> 6] |= mask;
+        }
+        for (Listener listener : listeners) {
+            listener.chunkAdded(chunkId);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a chunk as missed
+     *
+     * @param chunkId id of the chunk
+     */
+    public synchronized void clear(int chunkId) {
+        int bit = chunkId - 1;
+        words[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /**
+     * Adds a listener notified when a new chunk is owned
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Number of owned chunks
+     */
+    public synchronized int count() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if all the chunks are owned
+     */
+    public boolean isComplete() {
+        return count() == chunkNum;
+    }
+
+    /**
+     * @return A copy of the bits
+     */
+    public synchronized long[] toWords() {
+        return words.clone();
+    }
+
+    /**
+     * @return A copy of the bitmap
+     */
+    public synchronized ChunkBitmap copy() {
+        ChunkBitmap bitmap = new ChunkBitmap(chunkNum);
+        System.arraycopy(words, 0, bitmap.words, 0, words.length);
+        return bitmap;
+    }
+
+    /**
+     * Finds the chunks this bitmap owns and the other does not own
+     *
+     * @param other the other bitmap
+     * @return Bits of the chunks
+     */
+    public long[] missingIn(ChunkBitmap other) {
+        long[] theirs = other.toWords();
+        synchronized (this) {
+            for (int i = 0; i < theirs.length; i++) {
+                theirs[i] = words[i] & ~theirs[i];
+            }
+        }
+        return theirs;
+    }
+
+    /**
+     * Writes [number of words, words] to the stream
+     *
+     * @param output output of the connection
+     */
+    public void write(DataOutput output) throws IOException {
+        long[] copy = toWords();
+        output.writeInt(copy.length);
+        for (long word : copy) {
+            output.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads [number of words, words] from the stream
+     *
+     * @param input    input of the connection
+     * @param chunkNum Number of chunks
+     * @return The bitmap
+     */
+    public static ChunkBitmap read(DataInput input, int chunkNum) throws IOException {
+        ChunkBitmap bitmap = new ChunkBitmap(chunkNum);
+        int n = input.readInt();
+        if (n != bitmap.words.length) {
+            throw new IOException("Invalid bitfield of " + n + " words");
+        }
+        for (int i = 0; i < n; i++) {
+            bitmap.words[i] = input.readLong();
+        }
+        // No bit past the last chunk
+        if (chunkNum % 64 != 0 && (bitmap.words[n - 1] & (-1L << (chunkNum % 64))) != 0) {
+            throw new IOException("Invalid bitfield of " + chunkNum + " chunks");
+        }
+        return bitmap;
+    }
+}
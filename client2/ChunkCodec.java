@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression format of the chunks on the wire
+ */
+public interface ChunkCodec {
+
+    /**
+     * @return Id of the codec in the protocol (see Compression)
+     */
+    int getId();
+
+    /**
+     * @return Name of the codec in the config
+     */
+    String getName();
+
+    /**
+     * Compresses a chunk
+     *
+     * @param src bytes of the chunk, from position to limit (not changed)
+     * @param dst buffer the compressed bytes are put into from its position
+     * @return Number of compressed bytes,
+     *         or -1 if they do not fit into dst
+     */
+    int compress(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Decompresses a chunk
+     *
+     * @param src compressed bytes, from position to limit (not changed)
+     * @param dst buffer the chunk is put into from its position
+     * @throws IOException if the bytes are corrupted or do not fit into dst
+     */
+    void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+}
@@ -0,0 +1,16 @@
+/**
+ * Strategy to select the chunk to send to a neighbour (ring mode)
+ * or to request from a neighbour (swarm mode)
+ */
+public interface ChunkSelector {
+
+    /**
+     * Selects a chunk the source owns and the target does not own
+     *
+     * @param source chunk status of the sending client
+     * @param target chunk status of the receiving client
+     * @return Id of the selected chunk
+     *         or -1 if not found
+     */
+    int select(ChunkBitmap source, ChunkBitmap target);
+}
@@ -1,15 +1,24 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Client class
  */
 public class Client {
 
-    // A bitmap of chunks status ('1' for owned chunk, '0' for missed chunk)
-    private char[] chunkStatus;
+    // A bitmap of chunks status (bit set for owned chunk)
+    private ChunkBitmap chunkStatus;
 
     // Config of the program
     private Properties config;
@@ -23,51 +32,144 @@ public class Client {
     // Downloaded file
     private ChunkFile file;
 
+    // Executor of the connection handlers
+    private ExecutorService executor;
+
+    // Number of peers owning each chunk
+    private ChunkAvailability availability;
+
+    // Storage of the received chunks
+    private ChunkStorage storage;
+
+    // Verifies the received chunks
+    private ChunkVerifier verifier;
+
+    // Buffers of the chunks sent and received
+    private BufferPool pool;
+
+    // Metrics of the client
+    private ClientMetrics metrics;
+
+    // Server socket other clients connect to
+    private ServerSocket server;
+
+    // Connection to the server, kept open while I am in the swarm
+    private DataInputStream serverInput;
+    private DataOutputStream serverOutput;
+
     /**
-     * Constructor
+     * Constructor, with the config of config.properties
      */
     public Client() throws IOException {
-        // Load config from the file
-        config = new Properties();
-        config.load(new FileInputStream("config.properties"));
+        this(loadConfig());
+    }
 
-        // Get client Id from the config
+    /**
+     * Constructor, downloads the file and returns once it is assembled (the
+     * chunks are still uploaded to the other clients afterwards)
+     *
+     * @param config Config of the program
+     */
+    public Client(Properties config) throws IOException {
+        this.config = config;
+        Log.configure(config);
+
+        // Get client Id from the config, 0 to get one from the server
         clientId = Integer.parseInt(config.getProperty("ClientId"));
+        executor = ConnectionExecutor.create(config);
+
+        // Open the port other clients connect to, so that the server can
+        // tell them where I am
+        int port = clientId > 0
+                ? Integer.parseInt(config.getProperty("ClientPort-" + clientId))
+                : Integer.parseInt(config.getProperty("ListenPort", "0"));
+        server = new ServerSocket(port);
 
         // Download the initial chunks from the server
         downloadFromServer();
         // Listen to other clients to upload chunks
         startListener();
-        // Down load chunks from the neighbour client
-        downloadFromNeighbour();
+        // Down load chunks from the neighbour client, or from all the peers
+        if ("swarm".equals(config.getProperty("PeerMode"))) {
+            downloadFromSwarm();
+        } else {
+            downloadFromNeighbour();
+        }
         // After all the chunks received, assemble them into a file
         assembleChunks();
+        pool.reportLeaks();
+    }
+
+    /**
+     * Constructor of a client which does not connect to anyone, it only
+     * saves and assembles the chunks of a known file (benchmarks)
+     *
+     * @param config Config of the program
+     * @param file   Downloaded file
+     */
+    Client(Properties config, ChunkFile file) throws IOException {
+        this.config = config;
+        this.file = file;
+        prepareDownload();
+    }
+
+    /**
+     * Stops the hashing threads
+     */
+    void close() {
+        verifier.shutdown();
+    }
+
+    /**
+     * Loads the config from config.properties
+     *
+     * @return Config of the program
+     */
+    private static Properties loadConfig() throws IOException {
+        Properties config = new Properties();
+        config.load(new FileInputStream("config.properties"));
+        return config;
     }
 
     /**
      * Listens to other clients to upload chunks
      */
     private void startListener() throws IOException {
-        // Start a new thread to listen
-        new Thread(new Runnable() {
+        // Start a new task to listen
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    // Get port from the server
-                    final int port = Integer.parseInt(config.getProperty("ClientPort-" + clientId));
-
-                    // Create a server socket to listen
-                    final ServerSocket server = new ServerSocket(port);
-                    System.out.println("I'm listening on " + port);
+                    Log.info("I'm listening on " + server.getLocalPort());
 
-                    // If a client node connect, start client listener thread
-                    Socket socket = server.accept();
-                    new ClientListener(config, file, chunkStatus, socket).start();
+                    // Every time a client node connects, start a client listener
+                    while (true) {
+                        Socket socket = server.accept();
+                        executor.execute(new ClientListener(config, file, chunkStatus, storage,
+                                createSelector(), availability, pool, metrics, executor, socket));
+                    }
                 } catch (IOException e) {
-                    System.out.println("Error: " + e.getMessage());
+                    Log.error(e.getMessage());
                 }
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Creates the chunk selection strategy selected in the config
+     * (rarest, sequential or random)
+     *
+     * @return Strategy to select the chunks to send
+     */
+    private ChunkSelector createSelector() {
+        String strategy = config.getProperty("ChunkSelection", "rarest");
+        if ("sequential".equals(strategy)) {
+            return new SequentialSelector();
+        }
+        if ("random".equals(strategy)) {
+            return new RandomSelector();
+        }
+        return new RarestFirstSelector(availability);
     }
 
     /**
@@ -75,170 +177,385 @@ public class Client {
      *         false otherwise
      */
     private boolean finished() {
-        for (int i = 1; i <= file.getChunkNum(); i++) {
-            if (chunkStatus[i] == '0') {
-                return false;
-            }
-        }
-        return true;
+        return chunkStatus.isComplete();
     }
 
     /**
-     * Downloads the initial chunks from the server
+     * Downloads the initial chunks from the seed servers, in parallel
+     *
+     * The first seed gives out the client Id and keeps the membership of the
+     * swarm, the other seeds are only used to download chunks.
      */
     private void downloadFromServer() throws IOException {
-        Socket socket = null;
+        int window = Integer.parseInt(config.getProperty("Window", "1"));
+        List<SeedConnection> seeds = new ArrayList<SeedConnection>();
+        SeedConnection primary = null;
+        List<String> addresses = seedAddresses();
         try {
-            // Get server IP and port from the config
-            String serverIP = config.getProperty("ServerIP");
-            int serverPort = Integer.parseInt(config.getProperty("ServerPort"));
-
-            // Connect to the server
-            socket = new Socket(serverIP, serverPort);
+            // Connect to the first seed
+            primary = connectSeed(addresses.get(0), window);
 
         } catch (IOException e) {
             // Exit if the server is not available
-            System.out.println("Error: Connect to server refused.");
+            Log.error("Connect to server refused.");
             System.exit(0);
         }
-        DataInputStream input = new DataInputStream(socket.getInputStream());
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-
-        // Send the client ID
-        output.writeInt(clientId);
-        output.flush();
-
-        // Read neighbourId, filename, file size, totalChunks, sendChunks
-        neighbourId = input.readInt();
-        String filename = input.readUTF();
-        long size = input.readLong();
-        int chunkNum = input.readInt();
-        file = new ChunkFile(chunkNum, size, filename);
-        chunkStatus = new char[chunkNum + 1];
-        for (int i = 0; i <= chunkNum; i++) {
-            chunkStatus[i] = '0';
+        primary.open(clientId, server.getLocalPort(), Compression.offer(config));
+        seeds.add(primary);
+
+        clientId = primary.getClientId();
+        Log.info("I am client " + clientId);
+        neighbourId = primary.getNeighbourId();
+        file = primary.getFile();
+        prepareDownload();
+        metrics.export(config, clientId);
+
+        // Connect to the other seeds with the Id the first one gave me
+        for (String address : addresses.subList(1, addresses.size())) {
+            try {
+                SeedConnection seed = connectSeed(address, window);
+                seed.open(clientId, server.getLocalPort(), Compression.offer(config));
+                seeds.add(seed);
+            } catch (IOException e) {
+                Log.error("Seed " + address + " is not available");
+            }
         }
-        int n = input.readInt();
-        System.out.println("The file name is " + filename);
-        System.out.println("The file size is " + size);
-        System.out.println("The total chunk number is " + chunkNum);
-        System.out.println("I will receive " + n + " chunks from server");
-
-        // Read n chunks from the server
-        for (int i = 0; i < n; i++) {
-            // Read chunkId
-            int chunkId = input.readInt();
-            // Save the chunk to the file system
-            saveChunk(input, chunkId);
-            System.out.println("Received chunk " + chunkId + " from server");
-            // Tell the server I'm ready
-            output.writeUTF("OK");
-            output.flush();
+
+        Log.info("The file name is " + file.getFilename());
+        Log.info("The file size is " + file.getFileSize());
+        Log.info("The chunk size is " + file.getChunkSize());
+        Log.info("The total chunk number is " + file.getChunkNum());
+
+        // Tell every seed which chunks I already own, it only sends the others
+        SeedBalancer balancer = new SeedBalancer(seeds, chunkStatus);
+        int n = 0;
+        for (SeedConnection seed : seeds) {
+            n += seed.start(chunkStatus, balancer);
+        }
+        Log.info("I will receive " + n + " chunks from server");
+
+        // Read the chunks from all the seeds at once, until each of them
+        // sends the chunk Id 0
+        final CountDownLatch received = new CountDownLatch(seeds.size() - 1);
+        for (final SeedConnection seed : seeds.subList(1, seeds.size())) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    seed.run();
+                    seed.close();
+                    received.countDown();
+                }
+            });
+        }
+        primary.run();
+        try {
+            received.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        // Keep the connection open, I am a member of the swarm until I exit
+        serverInput = primary.getInput();
+        serverOutput = primary.getOutput();
+        Log.info("All the chunks from server are received");
+    }
+
+    /**
+     * Sets up the storage, the saved state, the verification and the buffers
+     * of the download of the file
+     */
+    private void prepareDownload() throws IOException {
+        availability = new ChunkAvailability(file.getChunkNum());
+        storage = new ChunkStorage(config, file);
+
+        // Resume with the chunks saved by an earlier run
+        DownloadState state = new DownloadState(config.getProperty("StateFile", "state.dat"),
+                Integer.parseInt(config.getProperty("StateSyncEvery", "32")));
+        chunkStatus = state.load(file);
+        if (chunkStatus == null) {
+            chunkStatus = new ChunkBitmap(file.getChunkNum());
         }
-        // Close the connection
-        input.close();
-        output.close();
-        socket.close();
-        System.out.println("Disconnect with server !");
+        state.attach(file, chunkStatus, storage);
+
+        verifier = new ChunkVerifier(file, Integer.parseInt(config.getProperty("HashThreads", "2")));
+        pool = BufferPool.create(config, file.getChunkSize());
+        metrics = new ClientMetrics(chunkStatus, availability, storage, verifier, pool);
+    }
+
+    /**
+     * @return Metrics of the client
+     */
+    ClientMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Saves the chunk to the file system
+     * Gets the addresses of the seed servers from the config
+     * (Seeds = host:port,..., or ServerIP and ServerPort if there is one seed)
      *
-     * @param input   input stream  of the connection
-     * @param chunkId id of the chunk
+     * @return Addresses of the seeds as host:port, the first one first
      */
-    private void saveChunk(DataInputStream input, int chunkId) throws IOException {
-        // Get chunk size and chunk directory from the config
-        int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
-        String chunkDir = config.getProperty("ChunkDir");
-        byte[] bytes = new byte[chunkSize];
-
-        // Make directory
-        File directory = new File(config.getProperty("ChunkDir"));
-        if (!directory.exists()) {
-            directory.mkdir();
+    private List<String> seedAddresses() {
+        List<String> addresses = new ArrayList<String>();
+        for (String address : config.getProperty("Seeds", "").split(",")) {
+            if (!address.trim().isEmpty()) {
+                addresses.add(address.trim());
+            }
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(config.getProperty("ServerIP") + ":" + config.getProperty("ServerPort"));
         }
+        return addresses;
+    }
 
-        File inputFile = new File(chunkDir + chunkId);
-        FileOutputStream output = null;
-        try {
-            output = new FileOutputStream(inputFile);
+    /**
+     * Connects to a seed server
+     *
+     * @param address Address of the seed as host:port
+     * @param window  Number of chunks the seed may send without acknowledgement
+     * @return The connection
+     */
+    private SeedConnection connectSeed(String address, int window) throws IOException {
+        int colon = address.lastIndexOf(':');
+        return new SeedConnection(this, address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)), window);
+    }
+
+    /**
+     * Asks the server for the other members of the swarm
+     *
+     * @return Addresses of the members by client Id, in ring order after me
+     */
+    private Map<Integer, InetSocketAddress> requestPeers() throws IOException {
+        serverOutput.writeInt(0);
+        serverOutput.flush();
+
+        Map<Integer, InetSocketAddress> peers = new LinkedHashMap<Integer, InetSocketAddress>();
+        int count = serverInput.readInt();
+        for (int i = 0; i < count; i++) {
+            int peerId = serverInput.readInt();
+            String host = serverInput.readUTF();
+            int port = serverInput.readInt();
+            peers.put(peerId, new InetSocketAddress(host, port));
+        }
+        return peers;
+    }
 
-            // Read bytes from the input stream and write to the file
-            int remainLength = input.readInt();
-            do {
-                int length = input.read(bytes, 0, chunkSize);
-                remainLength -= length;
-                output.write(bytes, 0, length);
-            } while (remainLength > 0);
+    /**
+     * Gets the address of a client from the config
+     *
+     * @param peerId Id of the client
+     * @return Address of the client
+     */
+    private InetSocketAddress configuredPeer(int peerId) {
+        return new InetSocketAddress(config.getProperty("ClientIP-" + peerId),
+                Integer.parseInt(config.getProperty("ClientPort-" + peerId)));
+    }
 
-            // Set the status
-            chunkStatus[chunkId] = '1';
+    /**
+     * Reads a chunk, verifies it and saves it to the file system
+     *
+     * A negative length is a chunk compressed with the codec of the
+     * connection. A chunk which does not decompress counts as corrupted.
+     *
+     * @param input    input stream  of the connection
+     * @param channel  channel reading from the same input stream
+     * @param chunkId  id of the chunk
+     * @param codec    codec of the connection, or null
+     * @param callback called once the chunk is verified (and saved if valid)
+     * @return Number of bytes of the chunk on the wire
+     */
+    int saveChunk(DataInputStream input, ReadableByteChannel channel, int chunkId,
+                  ChunkCodec codec, final ChunkVerifier.Callback callback) throws IOException {
+        // Read bytes from the input stream into a pooled buffer
+        // (never read past the chunk, the next one may already be in the stream)
+        int length = input.readInt();
+        boolean compressed = length < 0 && codec != null;
+        if (compressed) {
+            length = -length;
+        }
+        if (length < 0 || length > file.getChunkSize()) {
+            throw new IOException("Invalid length " + length + " of chunk " + chunkId);
+        }
+        final ByteBuffer chunk = pool.acquire();
+        ByteBuffer bytes = compressed ? pool.acquire() : chunk;
+        try {
+            bytes.limit(length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes) < 0) {
+                    throw new EOFException();
+                }
+            }
+            bytes.flip();
+        } catch (IOException e) {
+            pool.release(chunk);
+            if (compressed) {
+                pool.release(bytes);
+            }
+            throw e;
+        }
 
-        } finally {
-            if (output != null) {
-                output.close();
+        if (compressed) {
+            // The chunk has to come out exactly as long as it is
+            try {
+                chunk.limit(file.getChunkLength(chunkId));
+                codec.decompress(bytes, chunk);
+                if (chunk.hasRemaining()) {
+                    throw new IOException("Invalid compressed chunk");
+                }
+                chunk.flip();
+            } catch (IOException e) {
+                Log.error("Chunk " + chunkId + ": " + e.getMessage());
+                metrics.chunkCorrupted();
+                pool.release(chunk);
+                callback.verified(chunkId, false);
+                return length;
+            } finally {
+                pool.release(bytes);
             }
         }
+
+        // Verify the chunk off the receive path, then store it
+        verifier.verify(chunkId, chunk, new ChunkVerifier.Callback() {
+            @Override
+            public void verified(int chunkId, boolean valid) {
+                if (valid) {
+                    try {
+                        storage.write(chunkId, chunk);
+                        // Set the status
+                        chunkStatus.set(chunkId);
+                    } catch (IOException e) {
+                        Log.error(e.getMessage());
+                        valid = false;
+                    }
+                } else {
+                    metrics.chunkCorrupted();
+                }
+                pool.release(chunk);
+                callback.verified(chunkId, valid);
+            }
+        });
+        return length;
     }
 
     /**
      * Downloads chunks from the neighbour client
      */
     private void downloadFromNeighbour() throws IOException {
+        downloadFromPeers(findPeers(1), null);
+    }
 
-        // Get IP and port of the neighbour client from the config
-        String neighbourIP = config.getProperty("ClientIP-" + neighbourId);
-        int neighbourPort = Integer.parseInt(config.getProperty("ClientPort-" + neighbourId));
+    /**
+     * Downloads chunks from all (or SwarmPeers) peers in parallel,
+     * requesting different chunks from each of them
+     */
+    private void downloadFromSwarm() throws IOException {
+        int k = Integer.parseInt(config.getProperty("SwarmPeers", "0"));
+        downloadFromPeers(findPeers(k), chunkStatus.copy());
+    }
 
-        // Try to connect to the neighbour
-        Socket socket = null;
-        while (socket == null) {
+    /**
+     * Finds the peers to download from, starting after me in the ring
+     *
+     * Clients with an Id in the config take the other clients of the config.
+     * Clients which got their Id from the server take the members of the
+     * swarm, and wait until there is at least one.
+     *
+     * @param k Number of peers, 0 for all
+     * @return Addresses of the peers by client Id
+     */
+    private Map<Integer, InetSocketAddress> findPeers(int k) throws IOException {
+        Map<Integer, InetSocketAddress> peers = new LinkedHashMap<Integer, InetSocketAddress>();
+        if (Integer.parseInt(config.getProperty("ClientId")) > 0) {
+            int totalClients = Integer.parseInt(config.getProperty("ClientNumber"));
+            if (k <= 0 || k > totalClients - 1) {
+                k = totalClients - 1;
+            }
+            for (int i = 1; i <= k; i++) {
+                int peerId = (clientId + i - 1) % totalClients + 1;
+                peers.put(peerId, configuredPeer(peerId));
+            }
+            return peers;
+        }
+
+        while (!finished()) {
+            for (Map.Entry<Integer, InetSocketAddress> member : requestPeers().entrySet()) {
+                if (k > 0 && peers.size() == k) {
+                    break;
+                }
+                peers.put(member.getKey(), member.getValue());
+            }
+            if (!peers.isEmpty()) {
+                break;
+            }
+            Log.info("No other client in the swarm, retry after 5 seconds");
             try {
-                socket = new Socket(neighbourIP, neighbourPort);
-            } catch (IOException e) {
-                System.out.println("connect to " + neighbourIP + ":" + neighbourPort
-                        + " is refused, retry after 5 seconds");
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                break;
             }
-            sleep(5000);
         }
-        System.out.println("Connected with client " + neighbourId);
+        return peers;
+    }
 
-        DataInputStream input = new DataInputStream(socket.getInputStream());
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+    /**
+     * Downloads chunks from some peers until all the chunks are received
+     *
+     * @param peers   Addresses of the peers by client Id
+     * @param claimed Chunks owned or requested (swarm mode), null in ring mode
+     */
+    private void downloadFromPeers(Map<Integer, InetSocketAddress> peers, ChunkBitmap claimed) {
+        // Wake up when all the chunks are received
+        final CountDownLatch done = new CountDownLatch(1);
+        chunkStatus.addListener(new ChunkBitmap.Listener() {
+            @Override
+            public void chunkAdded(int chunkId) {
+                if (finished()) {
+                    done.countDown();
+                }
+            }
+        });
+
+        // Start a downloader for each peer
+        List<PeerDownloader> downloaders = new ArrayList<PeerDownloader>();
+        for (Map.Entry<Integer, InetSocketAddress> peer : peers.entrySet()) {
+            PeerDownloader downloader = new PeerDownloader(this, config, file, chunkStatus,
+                    claimed, claimed == null ? null : createSelector(), peer.getKey(),
+                    peer.getValue());
+            downloaders.add(downloader);
+            executor.execute(downloader);
+        }
 
-        // While not finished
-        while (!finished()) {
-            // Send the chunk status to the neighbour
-            output.writeUTF(new String(chunkStatus));
-            output.flush();
-
-            // Read a chunk Id that I do not own but the neighbour owns
-            int chunkId = input.readInt();
-            if (chunkId >= 1 && chunkId <= file.getChunkNum()) {
-                // Save the chunk to the file system
-                saveChunk(input, chunkId);
-                System.out.println("Received chunk " + chunkId + " from client " + neighbourId);
+        // Wait until all the chunks are received
+        try {
+            if (!finished()) {
+                done.await();
             }
-            sleep(100);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
 
-        // Close the connection
-        input.close();
-        output.close();
-        socket.close();
-        System.out.println("I am done");
+        // Stop the downloaders which are still waiting
+        for (PeerDownloader downloader : downloaders) {
+            downloader.close();
+        }
+        Log.info("I am done");
     }
 
     /**
-     * Assembles all the chunks into a file
+     * Assembles all the chunks into the file, or into the files of the
+     * manifest
      */
-    private void assembleChunks() throws IOException {
-        // Get chunk directory, file directory and chunk size
-        final String chunkDir = config.getProperty("ChunkDir");
+    void assembleChunks() throws IOException {
+        // The chunks were written straight into the file
+        if (storage.isDirect()) {
+            Log.info("File " + file.getFilename() + " is complete!");
+            return;
+        }
+
+        // Get file directory and chunk size
         final String fileDir = config.getProperty("FileDir");
-        final int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
+        final int chunkSize = file.getChunkSize();
 
         // Make file diretory
         File directory = new File(fileDir);
@@ -246,46 +563,21 @@ public class Client {
             directory.mkdir();
         }
 
-        FileOutputStream output = null;
-        FileInputStream input = null;
-        byte[] bytes = new byte[chunkSize];
-        System.out.println("Assembling chunks");
+        ByteBuffer chunk = pool.acquire();
+        Log.info("Assembling chunks");
+        ManifestChannel output = new ManifestChannel(fileDir, file.getManifest(), true);
         try {
-            File outputFile = new File(fileDir + file.getFilename());
-            output = new FileOutputStream(outputFile);
-
-            // Copy all the chunks to the output file
+            // Copy all the chunks to the output files, a chunk may span several
             for (int i = 1; i <= file.getChunkNum(); i++) {
-                try {
-                    input = new FileInputStream(chunkDir + i);
-                    int length = input.read(bytes);
-                    output.write(bytes, 0, length);
-
-                } finally {
-                    if (input != null) {
-                        input.close();
-                    }
-                }
-                System.out.print(".");
+                storage.read(i, chunk);
+                output.write(chunk, (long) (i - 1) * chunkSize);
+                Log.progress("Assembling", i, file.getChunkNum());
             }
-            System.out.println("Assembling file finished!");
+            Log.info("Assembling file finished!");
 
         } finally {
-            if (output != null) {
-                output.close();
-            }
-        }
-    }
-
-
-    /**
-     * Sleeps for a specified milliseconds
-     */
-    private void sleep(long millisecond) {
-        try {
-            Thread.sleep(millisecond);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            output.close();
+            pool.release(chunk);
         }
     }
 
@@ -294,7 +586,7 @@ public class Client {
             new Client();
         } catch (IOException e) {
             e.printStackTrace();
-            System.out.println("Error: " + e.getMessage());
+            Log.error(e.getMessage());
         }
     }
 
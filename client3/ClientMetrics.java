@@ -0,0 +1,181 @@
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the client: what is received from and sent to whom, how
+ * long chunks take to arrive, be verified and be stored, how much waits in
+ * the queues, and how complete the file and the swarm are
+ */
+public class ClientMetrics {
+
+    // All the metrics, exported
+    private final Metrics registry = new Metrics();
+
+    // Number of chunks received
+    private final LongAdder chunksReceived;
+
+    // Number of chunks sent to peers
+    private final LongAdder chunksSent;
+
+    // Number of chunks which failed verification
+    private final LongAdder chunksCorrupted;
+
+    // Number of requests to peers not answered yet
+    private final LongAdder requestsOutstanding;
+
+    // Time from the chunk Id to the last byte of the chunk
+    private final Histogram receiveLatency;
+
+    // Time from requesting a chunk from a peer to its last byte
+    private final Histogram requestLatency;
+
+    /**
+     * Constructor
+     *
+     * @param chunkStatus  Bitmap of chunks status
+     * @param availability Number of peers owning each chunk
+     * @param storage      Storage of the chunks
+     * @param verifier     Verifies the received chunks
+     * @param pool         Buffers of the chunks sent and received
+     */
+    public ClientMetrics(final ChunkBitmap chunkStatus, final ChunkAvailability availability,
+                         ChunkStorage storage, final ChunkVerifier verifier, final BufferPool pool) {
+        chunksReceived = registry.counter("p2p_chunks_received_total", "Chunks received");
+        registry.gauge("p2p_chunks_received_per_second", "Chunks received per second",
+                Metrics.rate(chunksReceived));
+        chunksSent = registry.counter("p2p_chunks_sent_total", "Chunks sent to peers");
+        registry.gauge("p2p_chunks_sent_per_second", "Chunks sent to peers per second",
+                Metrics.rate(chunksSent));
+        chunksCorrupted = registry.counter("p2p_chunks_corrupted_total",
+                "Chunks which failed verification");
+
+        receiveLatency = registry.histogram("p2p_chunk_receive_seconds",
+                "Time from the chunk Id to the last byte of the chunk");
+        requestLatency = registry.histogram("p2p_chunk_request_seconds",
+                "Time from requesting a chunk from a peer to its last byte");
+        registry.histogram("p2p_chunk_verify_seconds",
+                "Time from receiving a chunk to its verification", verifier.getLatency());
+        registry.histogram("p2p_disk_read_seconds", "Time to read a chunk from the storage",
+                storage.getReadLatency());
+        registry.histogram("p2p_disk_write_seconds", "Time to write a chunk to the storage",
+                storage.getWriteLatency());
+
+        requestsOutstanding = new LongAdder();
+        registry.gauge("p2p_requests_outstanding", "Requests to peers not answered yet",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return requestsOutstanding.sum();
+                    }
+                });
+        registry.gauge("p2p_verify_queue_chunks", "Chunks waiting for verification",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return verifier.getQueued();
+                    }
+                });
+        registry.gauge("p2p_buffers_in_use", "Chunk buffers taken from the pool",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return pool.getInUse();
+                    }
+                });
+
+        final int chunkNum = chunkStatus.getChunkNum();
+        registry.gauge("p2p_download_completion_percent", "Chunks owned, in percent",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return chunkStatus.count() * 100.0 / chunkNum;
+                    }
+                });
+        registry.gauge("p2p_swarm_completion_percent",
+                "Chunks owned by me and the peers connected to me, in percent",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return (chunkStatus.count() + availability.getCopies()) * 100.0
+                                / ((long) chunkNum * (1 + availability.getPeers()));
+                    }
+                });
+    }
+
+    /**
+     * @param peer Name of the seed or peer, like "seed host:port"
+     * @return The counter of the bytes of the chunks received from it
+     */
+    public LongAdder bytesReceived(String peer) {
+        return registry.counter("p2p_chunk_bytes_received_total", "Bytes of the chunks received",
+                "peer", peer);
+    }
+
+    /**
+     * @param peer Name of the peer, like "client 2"
+     * @return The counter of the bytes of the chunks sent to it
+     */
+    public LongAdder bytesSent(String peer) {
+        return registry.counter("p2p_chunk_bytes_sent_total", "Bytes of the chunks sent",
+                "peer", peer);
+    }
+
+    /**
+     * Counts a chunk read from a connection
+     *
+     * @param bytesReceived counter of the seed or peer
+     * @param length        Number of bytes of the chunk
+     * @param start         Time the chunk Id was read, in System.nanoTime()
+     */
+    public void chunkReceived(LongAdder bytesReceived, int length, long start) {
+        receiveLatency.recordSince(start);
+        chunksReceived.increment();
+        bytesReceived.add(length);
+    }
+
+    /**
+     * Counts a chunk written into a connection
+     *
+     * @param bytesSent counter of the peer
+     * @param length    Number of bytes of the chunk
+     */
+    public void chunkSent(LongAdder bytesSent, int length) {
+        chunksSent.increment();
+        bytesSent.add(length);
+    }
+
+    /**
+     * Counts a chunk which failed verification
+     */
+    public void chunkCorrupted() {
+        chunksCorrupted.increment();
+    }
+
+    /**
+     * Counts requests sent to a peer, or answered (negative)
+     *
+     * @param count Number of requests
+     */
+    public void requests(int count) {
+        requestsOutstanding.add(count);
+    }
+
+    /**
+     * Records the time a request took to be answered
+     *
+     * @param start Time the request was sent, in System.nanoTime()
+     */
+    public void requestAnswered(long start) {
+        requestLatency.recordSince(start);
+    }
+
+    /**
+     * Exports the metrics (see Metrics.export)
+     *
+     * @param config   Config of the program
+     * @param clientId Id of the client
+     */
+    public void export(Properties config, int clientId) {
+        registry.export(config, "Client", String.valueOf(clientId));
+    }
+}
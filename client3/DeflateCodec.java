@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the chunks with zlib, slower than LzCodec and smaller
+ *
+ * Every thread keeps a Deflater and an Inflater of its own, they hold native
+ * memory and are too expensive to create for every chunk.
+ */
+public class DeflateCodec implements ChunkCodec {
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    @Override
+    public int getId() {
+        return Compression.DEFLATE;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src.duplicate());
+        deflater.finish();
+        int start = dst.position();
+        while (!deflater.finished()) {
+            if (!dst.hasRemaining()) {
+                return -1;
+            }
+            deflater.deflate(dst);
+        }
+        return dst.position() - start;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src.duplicate());
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(dst) == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary()
+                        || !dst.hasRemaining())) {
+                    throw new IOException("Invalid compressed chunk");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed chunk: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations
+ *
+ * The buckets double in width, from 16 microseconds up to 16.8 seconds, with
+ * a last bucket for anything longer. Every bucket is a LongAdder, so the
+ * threads recording durations never contend on a single counter.
+ */
+public class Histogram {
+
+    // Upper bound of the first bucket, in nanoseconds
+    private static final long FIRST_BOUND = 16000;
+
+    // Number of buckets with an upper bound
+    public static final int BUCKETS = 21;
+
+    // Number of durations in each bucket, the last one has no upper bound
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+
+    // Sum of the durations, in nanoseconds
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructor
+     */
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration
+     *
+     * @param nanos the duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long units = Math.max(0, nanos - 1) / FIRST_BOUND;
+        int bucket = units == 0 ? 0 : 64 - Long.numberOfLeadingZeros(units);
+        counts[Math.min(bucket, BUCKETS)].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Records the duration from a time until now
+     *
+     * @param start the time, in System.nanoTime()
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param bucket index of the bucket, less than BUCKETS
+     * @return Upper bound of the bucket, in seconds
+     */
+    public static double bound(int bucket) {
+        return (FIRST_BOUND << bucket) / 1e9;
+    }
+
+    /**
+     * @return Number of durations in each bucket, the last one has no upper
+     *         bound
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Number of durations recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return Sum of the durations, in seconds
+     */
+    public double getSum() {
+        return sum.sum() / 1e9;
+    }
+
+    /**
+     * Estimates a quantile by the upper bound of the bucket it falls in
+     *
+     * @param q the quantile, between 0 and 1
+     * @return The estimate in seconds, 0 if nothing was recorded, infinity if
+     *         it is beyond the last bound
+     */
+    public double quantile(double q) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bound(i);
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
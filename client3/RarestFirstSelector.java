@@ -0,0 +1,51 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects the missing chunk owned by the fewest peers
+ *
+ * Ties are broken randomly, so that peers do not all converge on the same
+ * chunks.
+ */
+public class RarestFirstSelector implements ChunkSelector {
+
+    // Number of peers owning each chunk
+    private final ChunkAvailability availability;
+
+    /**
+     * Constructor
+     *
+     * @param availability Number of peers owning each chunk
+     */
+    public RarestFirstSelector(ChunkAvailability availability) {
+        this.availability = availability;
+    }
+
+    @Override
+    public int select(ChunkBitmap source, ChunkBitmap target) {
+        long[] candidates = source.missingIn(target);
+        int selected = -1;
+        int rarest = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            long word = candidates[i];
+            while (word != 0) {
+                int chunkId = i * 64 + Long.numberOfTrailingZeros(word) + 1;
+                word &= word - 1;
+
+                int count = availability.get(chunkId);
+                if (count < rarest) {
+                    rarest = count;
+                    selected = chunkId;
+                    ties = 1;
+                } else if (count == rarest) {
+                    // Reservoir sampling over the rarest candidates
+                    ties++;
+                    if (ThreadLocalRandom.current().nextInt(ties) == 0) {
+                        selected = chunkId;
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+}
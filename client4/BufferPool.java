@@ -0,0 +1,145 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of the chunk size of the file
+ *
+ * A buffer is taken for every chunk sent or received and given back once the
+ * chunk is handled, so that moving chunks does not allocate. At most
+ * BufferPoolSize idle buffers are kept. With BufferPoolDebug = true the pool
+ * remembers where every buffer was taken, fails on buffers given back twice
+ * and reports the buffers which are not given back yet, with the place they
+ * were taken.
+ */
+public class BufferPool {
+
+    // Size of each buffer
+    private final int bufferSize;
+
+    // Maximum number of idle buffers kept
+    private final int capacity;
+
+    // Idle buffers
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // Number of idle buffers
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    // Number of buffers allocated
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    // Number of buffers taken and not given back
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    // Buffers taken and where they were taken (debug mode), null otherwise
+    private final Map<ByteBuffer, Throwable> taken;
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize Size of each buffer
+     * @param capacity   Maximum number of idle buffers kept
+     * @param debug      true to track the buffers taken
+     */
+    public BufferPool(int bufferSize, int capacity, boolean debug) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.taken = debug ? new IdentityHashMap<ByteBuffer, Throwable>() : null;
+    }
+
+    /**
+     * Creates the pool set up in the config
+     *
+     * @param config    Config of the program
+     * @param chunkSize Size of each chunk
+     * @return The pool
+     */
+    public static BufferPool create(Properties config, int chunkSize) {
+        return new BufferPool(chunkSize,
+                Integer.parseInt(config.getProperty("BufferPoolSize", "64")),
+                "true".equals(config.getProperty("BufferPoolDebug")));
+    }
+
+    /**
+     * Takes a buffer
+     *
+     * @return An empty buffer of bufferSize bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer != null) {
+            idleCount.decrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocated.incrementAndGet();
+        }
+        inUse.incrementAndGet();
+        if (taken != null) {
+            synchronized (taken) {
+                taken.put(buffer, new Throwable("Buffer taken here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back
+     *
+     * @param buffer a buffer taken from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (taken != null) {
+            synchronized (taken) {
+                if (taken.remove(buffer) == null) {
+                    throw new IllegalStateException("Buffer given back twice or not from this pool");
+                }
+            }
+        }
+        inUse.decrementAndGet();
+        if (idleCount.incrementAndGet() <= capacity) {
+            idle.add(buffer);
+        } else {
+            // Enough idle buffers, let this one be collected
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of buffers taken and not given back yet
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Reports the buffers which are taken and not given back yet (debug mode)
+     *
+     * Called once nothing should hold a buffer any more, every buffer still
+     * taken is a leak, unless a neighbour is being sent a chunk meanwhile.
+     *
+     * @return Number of buffers not given back, 0 if not in debug mode
+     */
+    public int reportLeaks() {
+        if (taken == null) {
+            return 0;
+        }
+        synchronized (taken) {
+            for (Throwable site : taken.values()) {
+                StringWriter trace = new StringWriter();
+                site.printStackTrace(new PrintWriter(trace));
+                Log.error("Buffer not given back\n" + trace.toString().trim());
+            }
+            Log.info("Buffer pool: " + allocated.get() + " buffers allocated, "
+                    + taken.size() + " not given back");
+            return taken.size();
+        }
+    }
+}
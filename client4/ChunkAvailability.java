@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of peers owning each chunk, maintained from the bitfields and the
+ * "have" messages the peers announce
+ */
+public class ChunkAvailability {
+
+    // Number of peers owning each chunk (index 0 is not used)
+    private final AtomicIntegerArray counts;
+
+    // Sum of the counts
+    private final LongAdder copies = new LongAdder();
+
+    // Number of peers whose bitfield is counted
+    private final AtomicInteger peers = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param chunkNum Number of chunks
+     */
+    public ChunkAvailability(int chunkNum) {
+        this.counts = new AtomicIntegerArray(chunkNum + 1);
+    }
+
+    /**
+     * @param chunkId id of the chunk
+     * @return Number of peers owning the chunk
+     */
+    public int get(int chunkId) {
+        return counts.get(chunkId);
+    }
+
+    /**
+     * Counts a chunk a peer announced
+     *
+     * @param chunkId id of the chunk
+     */
+    public void add(int chunkId) {
+        counts.incrementAndGet(chunkId);
+        copies.increment();
+    }
+
+    /**
+     * Uncounts a chunk a peer turned out not to own
+     *
+     * @param chunkId id of the chunk
+     */
+    public void remove(int chunkId) {
+        counts.decrementAndGet(chunkId);
+        copies.decrement();
+    }
+
+    /**
+     * Counts all the chunks of a peer's bitfield
+     *
+     * @param bitmap chunk status of the peer
+     */
+    public void add(ChunkBitmap bitmap) {
+        update(bitmap, 1);
+        peers.incrementAndGet();
+    }
+
+    /**
+     * Removes the chunks of a peer which left
+     *
+     * @param bitmap last chunk status of the peer
+     */
+    public void remove(ChunkBitmap bitmap) {
+        update(bitmap, -1);
+        peers.decrementAndGet();
+    }
+
+    /**
+     * @return Number of chunks owned by the peers, all peers together
+     */
+    public long getCopies() {
+        return copies.sum();
+    }
+
+    /**
+     * @return Number of peers whose chunks are counted
+     */
+    public int getPeers() {
+        return peers.get();
+    }
+
+    /**
+     * Adds a delta to the counts of the owned chunks of a bitmap
+     */
+    private void update(ChunkBitmap bitmap, int delta) {
+        long[] words = bitmap.toWords();
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                counts.addAndGet(i * 64 + Long.numberOfTrailingZeros(word) + 1, delta);
+                copies.add(delta);
+                word &= word - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Storage of the received chunks
+ *
+ * StorageMode = chunks stores every chunk as its own file in ChunkDir, the
+ * chunks are assembled into the file at the end.
+ * StorageMode = direct preallocates the file (or all the files of the
+ * manifest) in FileDir and writes every chunk straight at its offset, so the
+ * files are complete as soon as the last chunk arrives.
+ */
+public class ChunkStorage {
+
+    // Directory of the chunks (chunks mode)
+    private final String chunkDir;
+
+    // The preallocated files (direct mode)
+    private final ManifestChannel channel;
+
+    // Size of each chunk
+    private final int chunkSize;
+
+    // Chunk files written since the last sync (chunks mode), guarded by this
+    private List<Integer> unsynced = new ArrayList<Integer>();
+
+    // Time to read a chunk
+    private final Histogram readLatency = new Histogram();
+
+    // Time to write a chunk
+    private final Histogram writeLatency = new Histogram();
+
+    /**
+     * Constructor
+     *
+     * @param config Config of the program
+     * @param file   Downloaded file
+     */
+    public ChunkStorage(Properties config, ChunkFile file) throws IOException {
+        this.chunkSize = file.getChunkSize();
+
+        if ("direct".equals(config.getProperty("StorageMode"))) {
+            // Make file directory
+            String fileDir = config.getProperty("FileDir");
+            File directory = new File(fileDir);
+            if (!directory.exists()) {
+                directory.mkdir();
+            }
+
+            // Preallocate the files
+            this.channel = new ManifestChannel(fileDir, file.getManifest(), true);
+            this.chunkDir = null;
+
+        } else {
+            // Make chunk directory
+            this.chunkDir = config.getProperty("ChunkDir");
+            File directory = new File(chunkDir);
+            if (!directory.exists()) {
+                directory.mkdir();
+            }
+            this.channel = null;
+        }
+    }
+
+    /**
+     * @return true if the chunks are written straight into the file
+     */
+    public boolean isDirect() {
+        return channel != null;
+    }
+
+    /**
+     * Stores a chunk
+     *
+     * @param chunkId id of the chunk
+     * @param chunk   bytes of the chunk, from position to limit (not changed)
+     */
+    public void write(int chunkId, ByteBuffer chunk) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = chunk.duplicate();
+        if (isDirect()) {
+            channel.write(buffer, (long) (chunkId - 1) * chunkSize);
+            writeLatency.recordSince(start);
+            return;
+        }
+
+        FileChannel output = new FileOutputStream(chunkDir + chunkId).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        } finally {
+            output.close();
+        }
+        synchronized (this) {
+            unsynced.add(chunkId);
+        }
+        writeLatency.recordSince(start);
+    }
+
+    /**
+     * Forces the stored chunks to the disk
+     *
+     * In chunks mode the chunk files written since the last sync are synced
+     * together here rather than one by one as they are written, then the
+     * chunk directory which lists them.
+     */
+    public void sync() throws IOException {
+        if (isDirect()) {
+            channel.force();
+            return;
+        }
+
+        List<Integer> written;
+        synchronized (this) {
+            written = unsynced;
+            unsynced = new ArrayList<Integer>();
+        }
+        if (written.isEmpty()) {
+            return;
+        }
+        try {
+            for (int chunkId : written) {
+                FileChannel file = FileChannel.open(Paths.get(chunkDir + chunkId),
+                        StandardOpenOption.WRITE);
+                try {
+                    file.force(false);
+                } finally {
+                    file.close();
+                }
+            }
+        } catch (IOException e) {
+            // Synced again by the next save
+            synchronized (this) {
+                unsynced.addAll(written);
+            }
+            throw e;
+        }
+        try {
+            FileChannel directory = FileChannel.open(Paths.get(chunkDir), StandardOpenOption.READ);
+            try {
+                directory.force(true);
+            } finally {
+                directory.close();
+            }
+        } catch (IOException e) {
+            // Some systems cannot sync a directory, the files are synced
+        }
+    }
+
+    /**
+     * Reads a chunk
+     *
+     * @param chunkId id of the chunk
+     * @param chunk   buffer of at least the chunk size, filled and flipped
+     * @return Number of bytes of the chunk
+     */
+    public int read(int chunkId, ByteBuffer chunk) throws IOException {
+        long start = System.nanoTime();
+        chunk.clear();
+        if (isDirect()) {
+            long offset = (long) (chunkId - 1) * chunkSize;
+            chunk.limit((int) Math.min(chunkSize, channel.size() - offset));
+            channel.read(chunk, offset);
+            chunk.flip();
+            readLatency.recordSince(start);
+            return chunk.remaining();
+        }
+
+        FileChannel input = new FileInputStream(chunkDir + chunkId).getChannel();
+        try {
+            while (chunk.hasRemaining() && input.read(chunk) > 0) {
+            }
+            chunk.flip();
+        } finally {
+            input.close();
+        }
+        readLatency.recordSince(start);
+        return chunk.remaining();
+    }
+
+    /**
+     * @return Time to read a chunk
+     */
+    public Histogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * @return Time to write a chunk
+     */
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+}
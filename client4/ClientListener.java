@@ -1,17 +1,29 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * The thread to send chunks to the neighbour clients
+ * The task to send chunks to the neighbour clients
  */
-public class ClientListener extends Thread {
+public class ClientListener implements Runnable {
 
     // Downloaded file
     private final ChunkFile file;
 
     // Bitmap of chunks status
-    private final char[] chunkStatus;
+    private final ChunkBitmap chunkStatus;
+
+    // Storage of the chunks
+    private final ChunkStorage storage;
 
     // Neighbour connection
     private final Socket socket;
@@ -22,103 +34,348 @@ public class ClientListener extends Thread {
     // Output of the connection
     private final DataOutputStream output;
 
+    // Channel writing to the same output, for the chunk buffers
+    private final WritableByteChannel outputChannel;
+
     // Config of the program
     private final Properties config;
 
+    // Strategy to select the chunk to send
+    private final ChunkSelector selector;
+
+    // Number of peers owning each chunk
+    private final ChunkAvailability availability;
+
+    // Buffers of the chunks sent
+    private final BufferPool pool;
+
+    // Metrics of the client
+    private final ClientMetrics metrics;
+
+    // Bytes of the chunks sent to the neighbour
+    private final LongAdder bytesSent;
+
+    // Executor running the reader of the connection
+    private final ExecutorService executor;
+
+    // Chunk status of the neighbour, from its bitfield, its "have"
+    // messages and the chunks sent to it. Guarded by this, and counted in
+    // the availability under the same lock as a bit changes, so that every
+    // chunk of the neighbour is counted once.
+    private ChunkBitmap neighbourStatus;
+
+    // Number of requests of the neighbour not answered yet (ring mode)
+    private int pending;
+
+    // Chunks the neighbour asked for and not sent yet (swarm mode)
+    private final Queue<Integer> requested = new ArrayDeque<Integer>();
+
+    // New chunks of mine to announce to the neighbour
+    private final Queue<Integer> haves = new ArrayDeque<Integer>();
+
+    // true once the neighbour closed the connection
+    private boolean closed;
+
+    // Codec the chunks are compressed with, or null
+    private ChunkCodec codec;
+
+    // true if the neighbour has to be told the codec
+    private boolean codecChosen;
+
+    // Wakes up the sender when I receive a new chunk
+    private final ChunkBitmap.Listener haveListener = new ChunkBitmap.Listener() {
+        @Override
+        public void chunkAdded(int chunkId) {
+            synchronized (ClientListener.this) {
+                haves.add(chunkId);
+                ClientListener.this.notifyAll();
+            }
+        }
+    };
+
     /**
      * Constructor
      *
-     * @param config      Config of the program
-     * @param file        Downloaded file
-     * @param chunkStatus Bitmap of chunks status
-     * @param socket      Neighbour connection
+     * @param config       Config of the program
+     * @param file         Downloaded file
+     * @param chunkStatus  Bitmap of chunks status
+     * @param storage      Storage of the chunks
+     * @param selector     Strategy to select the chunk to send
+     * @param availability Number of peers owning each chunk
+     * @param pool         Buffers of the chunks sent
+     * @param metrics      Metrics of the client
+     * @param executor     Executor running the reader of the connection
+     * @param socket       Neighbour connection
      */
-    public ClientListener(Properties config, ChunkFile file, char[] chunkStatus, Socket socket)
+    public ClientListener(Properties config, ChunkFile file, ChunkBitmap chunkStatus,
+                          ChunkStorage storage, ChunkSelector selector, ChunkAvailability availability,
+                          BufferPool pool, ClientMetrics metrics, ExecutorService executor,
+                          Socket socket)
             throws IOException {
         this.config = config;
         this.file = file;
         this.chunkStatus = chunkStatus;
+        this.storage = storage;
+        this.selector = selector;
+        this.availability = availability;
+        this.pool = pool;
+        this.metrics = metrics;
+        // The neighbour does not tell its Id, it is known by its address
+        this.bytesSent = metrics.bytesSent("client " + socket.getInetAddress().getHostAddress()
+                + ":" + socket.getPort());
+        this.executor = executor;
         this.socket = socket;
         this.input = new DataInputStream(socket.getInputStream());
         this.output = new DataOutputStream(socket.getOutputStream());
+        this.outputChannel = Channels.newChannel(output);
     }
 
     /**
      * Selects a chunk I owns and the neighbour does not own
      *
-     * @param status chunk status of the neighbour
      * @return Id of the selected chunk
      *         or -1 if not found
      */
-    private int selectChunk(String status) {
-        for (int i = 1; i <= file.getChunkNum(); i++) {
-            if (status.charAt(i) == '0' && chunkStatus[i] == '1') {
-                return i;
-            }
+    private int selectChunk() {
+        if (neighbourStatus == null) {
+            return -1;
         }
-        return -1;
+        return selector.select(chunkStatus, neighbourStatus);
     }
 
-
     /**
-     * Runs the thread
+     * Runs the task
+     *
+     * The messages of the neighbour are read by a separate reader, this task
+     * announces my new chunks and answers the requests. If there is nothing
+     * new for the neighbour, it waits until I receive a new chunk instead of
+     * answering -1.
      */
     public void run() {
-        while (true) {
-            try {
-                // Read the chunk status of the neighbour
-                String status = input.readUTF();
-
-                // Select a chunk to send
-                int chunkId = selectChunk(status);
-                output.writeInt(chunkId);
-                output.flush();
+        chunkStatus.addListener(haveListener);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readMessages();
+            }
+        });
+
+        try {
+            // Send my chunk status once, later chunks are announced with "have"
+            output.writeByte(Protocol.BITFIELD);
+            chunkStatus.write(output);
+            output.flush();
+
+            while (true) {
+                // Wait for something to send
+                List<Integer> newChunks = new ArrayList<Integer>();
+                int chunkId = 0;
+                boolean announceCodec;
+                ChunkCodec codec;
+                synchronized (this) {
+                    while (!closed && !codecChosen && haves.isEmpty() && requested.isEmpty()
+                            && (pending == 0 || (chunkId = selectChunk()) < 0)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            closed = true;
+                        }
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    announceCodec = codecChosen;
+                    codecChosen = false;
+                    codec = this.codec;
+                    newChunks.addAll(haves);
+                    haves.clear();
+
+                    if (!requested.isEmpty()) {
+                        // The neighbour selected the chunk
+                        chunkId = requested.poll();
+                        if (!chunkStatus.get(chunkId)) {
+                            chunkId = -chunkId;
+                        }
+                    } else if (chunkId > 0) {
+                        // I selected the chunk
+                        pending--;
+                    } else {
+                        // Only new chunks to announce
+                        chunkId = 0;
+                    }
+                    if (chunkId > 0 && neighbourStatus.set(chunkId)) {
+                        availability.add(chunkId);
+                    }
+                }
+
+                // Tell the neighbour the codec of the next chunks
+                if (announceCodec) {
+                    output.writeByte(Protocol.COMPRESS);
+                    output.writeInt(codec == null ? Compression.NONE : codec.getId());
+                }
+
+                // Announce my new chunks
+                for (int have : newChunks) {
+                    output.writeByte(Protocol.HAVE);
+                    output.writeInt(have);
+                }
 
                 if (chunkId > 0) {
                     // Send the chunk to the neighbour
-                    sendChunk(chunkId);
+                    output.writeByte(Protocol.PIECE);
+                    output.writeInt(chunkId);
+                    sendChunk(chunkId, codec);
+                } else if (chunkId < 0) {
+                    // Refuse a chunk I do not own
+                    output.writeByte(Protocol.PIECE);
+                    output.writeInt(chunkId);
                 }
-            } catch (IOException e) {
-                break;
+                output.flush();
             }
+        } catch (IOException e) {
         }
+
+        chunkStatus.removeListener(haveListener);
         closeConnection();
     }
 
+    /**
+     * Reads the messages of the neighbour until it closes the connection
+     */
+    private void readMessages() {
+        try {
+            while (true) {
+                byte type = input.readByte();
+                if (type == Protocol.BITFIELD) {
+                    // Read the chunk status of the neighbour, sent once
+                    ChunkBitmap status = ChunkBitmap.read(input, file.getChunkNum());
+                    synchronized (this) {
+                        if (neighbourStatus != null) {
+                            throw new IOException("Bitfield sent twice");
+                        }
+                        neighbourStatus = status;
+                        availability.add(status);
+                    }
+
+                } else if (type == Protocol.HAVE) {
+                    // The neighbour received a chunk from somewhere else
+                    int chunkId = file.checkChunkId(input.readInt());
+                    synchronized (this) {
+                        if (statusOf(chunkId).set(chunkId)) {
+                            availability.add(chunkId);
+                        }
+                    }
+
+                } else if (type == Protocol.COMPRESS) {
+                    // The neighbour offers the codecs it can decompress
+                    int codecs = input.readInt();
+                    synchronized (this) {
+                        codec = Compression.codec(Compression.choose(config, codecs));
+                        codecChosen = true;
+                    }
+
+                } else if (type == Protocol.REQUEST) {
+                    synchronized (this) {
+                        pending++;
+                    }
+
+                } else if (type == Protocol.CORRUPT) {
+                    // The chunk I sent failed verification
+                    int chunkId = file.checkChunkId(input.readInt());
+                    synchronized (this) {
+                        if (statusOf(chunkId).get(chunkId)) {
+                            statusOf(chunkId).clear(chunkId);
+                            availability.remove(chunkId);
+                        }
+                    }
+
+                } else if (type == Protocol.REQUEST_CHUNK) {
+                    int chunkId = file.checkChunkId(input.readInt());
+                    synchronized (this) {
+                        statusOf(chunkId);
+                        requested.add(chunkId);
+                    }
+
+                } else {
+                    throw new IOException("Invalid message " + type);
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        } catch (EOFException e) {
+            // The neighbour closed the connection
+        } catch (IOException e) {
+            // Not closed on purpose: the connection broke or the neighbour
+            // broke the protocol
+            if (!socket.isClosed()) {
+                Log.error(e.getMessage());
+            }
+        } finally {
+            // The neighbour left, its chunks are not available any more
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                if (neighbourStatus != null) {
+                    availability.remove(neighbourStatus);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param chunkId id of a chunk the neighbour sent
+     * @return The chunk status of the neighbour, the caller holds the lock
+     * @throws IOException if the neighbour has not sent its bitfield yet
+     */
+    private ChunkBitmap statusOf(int chunkId) throws IOException {
+        if (neighbourStatus == null) {
+            throw new IOException("Chunk " + chunkId + " sent before the bitfield");
+        }
+        return neighbourStatus;
+    }
+
     /**
      * Sends a chunk to the neighbour
      *
+     * With a codec the chunk is sent compressed, with a negative length,
+     * unless it does not compress.
+     *
      * @param chunkId id of the chunk
+     * @param codec   codec of the connection, or null
      */
-    private void sendChunk(int chunkId) {
-        // Get chunk size and chunk directory from the config
-        int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
-        String chunkDir = config.getProperty("ChunkDir");
-
-        byte[] bytes = new byte[chunkSize];
-        File file = new File(chunkDir + chunkId);
-        FileInputStream input = null;
+    private void sendChunk(int chunkId, ChunkCodec codec) {
+        ByteBuffer chunk = pool.acquire();
+        ByteBuffer compressed = null;
         try {
-            // Read bytes from the file
-            input = new FileInputStream(file);
-            int length = input.read(bytes);
+            // Read bytes from the storage
+            storage.read(chunkId, chunk);
+            ByteBuffer bytes = chunk;
+            if (codec != null) {
+                compressed = pool.acquire();
+                if (Compression.compress(codec, chunk, compressed) >= 0) {
+                    compressed.flip();
+                    bytes = compressed;
+                }
+            }
 
             // Send the number of bytes
-            output.writeInt(length);
+            int length = bytes.remaining();
+            output.writeInt(bytes == chunk ? length : -length);
 
             // Send the bytes
-            output.write(bytes, 0, length);
+            while (bytes.hasRemaining()) {
+                outputChannel.write(bytes);
+            }
             output.flush();
+            metrics.chunkSent(bytesSent, length);
 
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
-
+            Log.error(e.getMessage());
         } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                }
+            pool.release(chunk);
+            if (compressed != null) {
+                pool.release(compressed);
             }
         }
     }
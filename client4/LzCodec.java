@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses the chunks with a fast LZ77 codec, in the LZ4 block format
+ *
+ * Matches are found with a hash table of the last position of every 4 bytes,
+ * so a chunk is compressed in a single pass. A block is a list of sequences
+ * [token, literal length, literals, offset, match length]: the token holds 4
+ * bits of each length, a length of 15 goes on in the next bytes (255 means
+ * more follows), the offset of the match is 2 bytes little-endian, and the
+ * last sequence only has literals.
+ */
+public class LzCodec implements ChunkCodec {
+
+    // Shortest match
+    private static final int MIN_MATCH = 4;
+
+    // Farthest match
+    private static final int MAX_OFFSET = 65535;
+
+    // Bits of the hash of 4 bytes
+    private static final int HASH_BITS = 14;
+
+    // No match starts in the last bytes, and no match ends in the last 5
+    private static final int MATCH_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * Arrays of a thread, reused for every chunk
+     */
+    private static final class Scratch {
+        int[] table = new int[1 << HASH_BITS];
+        byte[] in = new byte[0];
+        byte[] out = new byte[0];
+    }
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    @Override
+    public int getId() {
+        return Compression.LZ;
+    }
+
+    @Override
+    public String getName() {
+        return "lz";
+    }
+
+    @Override
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        Scratch s = scratch.get();
+        int length = src.remaining();
+        byte[] in = input(s, src);
+        if (s.out.length < dst.remaining()) {
+            s.out = new byte[dst.remaining()];
+        }
+        int n = compress(in, length, s.out, dst.remaining(), s.table);
+        if (n >= 0) {
+            dst.put(s.out, 0, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        Scratch s = scratch.get();
+        int length = src.remaining();
+        byte[] in = input(s, src);
+        if (s.out.length < dst.remaining()) {
+            s.out = new byte[dst.remaining()];
+        }
+        int n = decompress(in, length, s.out, dst.remaining());
+        dst.put(s.out, 0, n);
+    }
+
+    /**
+     * Copies the bytes of a buffer into the input array of the thread
+     */
+    private static byte[] input(Scratch s, ByteBuffer src) {
+        if (s.in.length < src.remaining()) {
+            s.in = new byte[src.remaining()];
+        }
+        src.duplicate().get(s.in, 0, src.remaining());
+        return s.in;
+    }
+
+    /**
+     * Compresses length bytes of src
+     *
+     * @return Number of bytes put into dst, or -1 if more than max
+     */
+    static int compress(byte[] src, int length, byte[] dst, int max, int[] table) {
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int out = 0;
+        int i = 0;
+        int limit = length - MATCH_LIMIT;
+        while (i < limit) {
+            int sequence = readInt(src, i);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Skip faster through bytes which do not match
+                i += 1 + ((i - anchor) >>> 6);
+                continue;
+            }
+
+            // Extend the match
+            int matchEnd = length - LAST_LITERALS;
+            int match = MIN_MATCH;
+            while (i + match < matchEnd && src[ref + match] == src[i + match]) {
+                match++;
+            }
+
+            int token = out;
+            out = writeSequence(src, anchor, i - anchor, dst, out, max);
+            if (out < 0 || out + 2 + (match - MIN_MATCH) / 255 + 1 > max) {
+                return -1;
+            }
+            dst[token] |= (byte) Math.min(match - MIN_MATCH, 15);
+            dst[out++] = (byte) (i - ref);
+            dst[out++] = (byte) ((i - ref) >>> 8);
+            out = writeLength(dst, out, match - MIN_MATCH);
+
+            i += match;
+            anchor = i;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, out, max);
+    }
+
+    /**
+     * Writes the token, the literal length and the literals of a sequence
+     *
+     * @return Position after the literals in dst, or -1 if past max
+     */
+    private static int writeSequence(byte[] src, int from, int literals, byte[] dst, int out,
+                                     int max) {
+        if (out + 1 + literals / 255 + 1 + literals > max) {
+            return -1;
+        }
+        dst[out++] = (byte) (Math.min(literals, 15) << 4);
+        out = writeLength(dst, out, literals);
+        System.arraycopy(src, from, dst, out, literals);
+        return out + literals;
+    }
+
+    /**
+     * Writes the bytes of a length beyond the 15 of the token
+     *
+     * @return Position after them
+     */
+    private static int writeLength(byte[] dst, int out, int length) {
+        if (length < 15) {
+            return out;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    /**
+     * Decompresses length bytes of src
+     *
+     * @return Number of bytes put into dst
+     * @throws IOException if the bytes are not a valid block, or need more
+     *                     than max bytes
+     */
+    static int decompress(byte[] src, int length, byte[] dst, int max) throws IOException {
+        int in = 0;
+        int out = 0;
+        while (in < length) {
+            int token = src[in++] & 0xff;
+
+            // Literals
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (in >= length) {
+                        throw new IOException("Invalid compressed chunk");
+                    }
+                    b = src[in++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (in + literals > length || out + literals > max) {
+                throw new IOException("Invalid compressed chunk");
+            }
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+            if (in == length) {
+                break;
+            }
+
+            // Match
+            if (in + 2 > length) {
+                throw new IOException("Invalid compressed chunk");
+            }
+            int offset = (src[in] & 0xff) | (src[in + 1] & 0xff) << 8;
+            in += 2;
+            int match = token & 15;
+            if (match == 15) {
+                int b;
+                do {
+                    if (in >= length) {
+                        throw new IOException("Invalid compressed chunk");
+                    }
+                    b = src[in++] & 0xff;
+                    match += b;
+                } while (b == 255);
+            }
+            match += MIN_MATCH;
+            if (offset == 0 || offset > out || out + match > max) {
+                throw new IOException("Invalid compressed chunk");
+            }
+            // The match may overlap the bytes it produces
+            for (int ref = out - offset, end = out + match; out < end; ) {
+                dst[out++] = dst[ref++];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Reads 4 bytes, little-endian
+     */
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16
+                | (src[i + 3] & 0xff) << 24;
+    }
+}
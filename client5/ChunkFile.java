@@ -1,5 +1,7 @@
+import java.io.IOException;
+
 /**
- * The file to be distributed
+ * The file to be distributed, or the files of a manifest laid end to end
  */
 public class ChunkFile {
 
@@ -12,6 +14,15 @@ public class ChunkFile {
     // Number of chunks
     private final int chunkNum;
 
+    // SHA-256 hash of each chunk (index 0 is not used), null if unknown
+    private final byte[][] hashes;
+
+    // The files the chunks are cut out of
+    private final Manifest manifest;
+
+    // Size of each chunk but the last, 0 if unknown
+    private final int chunkSize;
+
     /**
      * Constructor
      *
@@ -20,9 +31,43 @@ public class ChunkFile {
      * @param filename Name of the file
      */
     public ChunkFile(int chunkNum, long fileSize, String filename) {
+        this(chunkNum, fileSize, filename, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param chunkNum Number of chunks
+     * @param fileSize Size of the file
+     * @param filename Name of the file
+     * @param hashes   Hash of each chunk (index 0 is not used), or null
+     */
+    public ChunkFile(int chunkNum, long fileSize, String filename, byte[][] hashes) {
+        this(chunkNum, fileSize, filename, hashes, null, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param chunkNum  Number of chunks
+     * @param fileSize  Size of all the files
+     * @param filename  Name of the file or of the directory
+     * @param hashes    Hash of each chunk (index 0 is not used), or null
+     * @param manifest  The files, or null for the single file filename
+     * @param chunkSize Size of each chunk but the last, 0 if unknown
+     */
+    public ChunkFile(int chunkNum, long fileSize, String filename, byte[][] hashes,
+                     Manifest manifest, int chunkSize) {
         this.chunkNum = chunkNum;
+        this.chunkSize = chunkSize;
         this.filename = filename;
         this.fileSize = fileSize;
+        this.hashes = hashes;
+        if (manifest == null) {
+            manifest = new Manifest();
+            manifest.add(filename, fileSize);
+        }
+        this.manifest = manifest;
     }
 
     /**
@@ -39,10 +84,61 @@ public class ChunkFile {
         return fileSize;
     }
 
+    /**
+     * @return Size of each chunk but the last, 0 if unknown
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkId id of the chunk
+     * @return Number of bytes of the chunk (the last chunk may be shorter)
+     */
+    public int getChunkLength(int chunkId) {
+        return (int) Math.min(chunkSize, fileSize - (long) (chunkId - 1) * chunkSize);
+    }
+
     /**
      * @return Number of chunks
      */
     public int getChunkNum() {
         return chunkNum;
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks a chunk id read from the other side of a connection
+     *
+     * @param chunkId id of the chunk
+     * @return The chunk id
+     * @throws IOException if the file has no such chunk
+     */
+    public int checkChunkId(int chunkId) throws IOException {
+        if (chunkId < 1 || chunkId > chunkNum) {
+            throw new IOException("Invalid chunk " + chunkId + " of " + chunkNum);
+        }
+        return chunkId;
+    }
+
+    /**
+     * @return true if the hashes of the chunks are known
+     */
+    public boolean hasHashes() {
+        return hashes != null;
+    }
+
+    /**
+     * @param chunkId id of the chunk
+     * @return Hash of the chunk
+     */
+    public byte[] getHash(int chunkId) {
+        return hashes[chunkId];
+    }
+
+    /**
+     * @return The files the chunks are cut out of
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+}
@@ -0,0 +1,36 @@
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor which runs the connection handlers
+ *
+ * ExecutionMode = platform runs every handler on its own platform thread,
+ * ExecutionMode = virtual runs every handler on a virtual thread (Java 21+),
+ * so that blocking I/O does not cost a thread stack per connection.
+ */
+public class ConnectionExecutor {
+
+    private ConnectionExecutor() {
+    }
+
+    /**
+     * Creates the executor selected in the config
+     *
+     * @param config Config of the program
+     * @return Executor of the connection handlers
+     */
+    public static ExecutorService create(Properties config) {
+        if ("virtual".equals(config.getProperty("ExecutionMode"))) {
+            try {
+                // Looked up at runtime so that the program still runs on older JVMs
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Virtual threads are not supported, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,409 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of counters, gauges and histograms of the program
+ *
+ * Counters are LongAdders and histograms are made of LongAdders, so the
+ * threads moving chunks only ever add to a cell of their own, they never
+ * take a lock. The values are read when they are exported: in the Prometheus
+ * text format on http://MetricsAddress:MetricsPort/metrics, and as the
+ * attributes of an MBean of the platform MBean server (MetricsJmx = true).
+ *
+ * A metric may have one label, like the peer the bytes were sent to, every
+ * value of the label is a series of its own.
+ */
+public class Metrics implements DynamicMBean {
+
+    /**
+     * A value read when the metrics are exported
+     */
+    public interface Gauge {
+
+        /**
+         * @return The current value
+         */
+        double value();
+    }
+
+    /**
+     * The series of one metric
+     */
+    private static final class Family {
+
+        // Name of the metric
+        final String name;
+
+        // Description of the metric
+        final String help;
+
+        // counter, gauge or histogram
+        final String type;
+
+        // Name of the label, or null
+        final String label;
+
+        // LongAdder, Gauge or Histogram by label value ("" without label)
+        final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+
+        Family(String name, String help, String type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    // Metrics in the order they were registered
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    /**
+     * Registers a counter
+     *
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @return The counter
+     */
+    public LongAdder counter(String name, String help) {
+        return counter(name, help, null, "");
+    }
+
+    /**
+     * Registers a counter with a label, or finds it if it exists
+     *
+     * @param name  Name of the metric
+     * @param help  Description of the metric
+     * @param label Name of the label
+     * @param value Value of the label
+     * @return The counter of the label value
+     */
+    public LongAdder counter(String name, String help, String label, String value) {
+        ConcurrentMap<String, Object> series = family(name, help, "counter", label).series;
+        Object counter = series.get(value);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = series.putIfAbsent(value, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return (LongAdder) counter;
+    }
+
+    /**
+     * Registers a counter kept by someone else, like the hits of the cache
+     *
+     * @param name    Name of the metric
+     * @param help    Description of the metric
+     * @param counter Reads the value, which only goes up
+     */
+    public void counter(String name, String help, Gauge counter) {
+        family(name, help, "counter", null).series.put("", counter);
+    }
+
+    /**
+     * Registers a gauge
+     *
+     * @param name  Name of the metric
+     * @param help  Description of the metric
+     * @param gauge Reads the value
+     */
+    public void gauge(String name, String help, Gauge gauge) {
+        family(name, help, "gauge", null).series.put("", gauge);
+    }
+
+    /**
+     * Registers a histogram
+     *
+     * @param name      Name of the metric
+     * @param help      Description of the metric
+     * @param histogram The histogram, owned by the code measuring the durations
+     */
+    public void histogram(String name, String help, Histogram histogram) {
+        family(name, help, "histogram", null).series.put("", histogram);
+    }
+
+    /**
+     * Registers a histogram
+     *
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @return The histogram
+     */
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        histogram(name, help, histogram);
+        return histogram;
+    }
+
+    /**
+     * Finds or creates a metric
+     */
+    private synchronized Family family(String name, String help, String type, String label) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type, label);
+            families.put(name, family);
+        }
+        return family;
+    }
+
+    /**
+     * @return The metrics, in the order they were registered
+     */
+    private synchronized List<Family> families() {
+        return new ArrayList<Family>(families.values());
+    }
+
+    /**
+     * Makes a gauge of the rate of a counter, per second, measured over at
+     * least the last second
+     *
+     * @param counter the counter
+     * @return The gauge
+     */
+    public static Gauge rate(final LongAdder counter) {
+        return new Gauge() {
+            private long lastCount = counter.sum();
+            private long lastTime = System.nanoTime();
+            private double rate;
+
+            @Override
+            public synchronized double value() {
+                long now = System.nanoTime();
+                if (now - lastTime >= 1000000000L) {
+                    long count = counter.sum();
+                    rate = (count - lastCount) * 1e9 / (now - lastTime);
+                    lastCount = count;
+                    lastTime = now;
+                }
+                return rate;
+            }
+        };
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format
+     *
+     * @return The metrics
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                Object metric = series.getValue();
+                String labels = family.label == null ? ""
+                        : family.label + "=\"" + escape(series.getKey()) + "\"";
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    long[] counts = histogram.getCounts();
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        String le = i < Histogram.BUCKETS ? format(Histogram.bound(i)) : "+Inf";
+                        sample(out, family.name + "_bucket",
+                                (labels.isEmpty() ? "" : labels + ",") + "le=\"" + le + "\"",
+                                String.valueOf(cumulative));
+                    }
+                    sample(out, family.name + "_sum", labels, format(histogram.getSum()));
+                    sample(out, family.name + "_count", labels, String.valueOf(cumulative));
+                } else {
+                    sample(out, family.name, labels, format(value(metric)));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes one sample
+     */
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return The value of a counter or a gauge
+     */
+    private static Number value(Object metric) {
+        if (metric instanceof LongAdder) {
+            return ((LongAdder) metric).sum();
+        }
+        return ((Gauge) metric).value();
+    }
+
+    /**
+     * Formats a number, integers without a fraction
+     */
+    private static String format(Number value) {
+        if (value instanceof Long) {
+            return value.toString();
+        }
+        double d = value.doubleValue();
+        if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+            return String.valueOf((long) d);
+        }
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "+Inf" : "-Inf";
+        }
+        return String.valueOf(d);
+    }
+
+    /**
+     * Escapes a label value
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Exports the metrics as set up in the config: MetricsPort (none if
+     * empty) and MetricsAddress of the HTTP endpoint, and MetricsJmx
+     *
+     * A metrics endpoint which cannot be opened is reported and left out,
+     * it never stops the program.
+     *
+     * @param config Config of the program
+     * @param type   Type of the MBean, like Server
+     * @param name   Name of the MBean, like the client Id
+     */
+    public void export(Properties config, String type, String name) {
+        String port = config.getProperty("MetricsPort", "").trim();
+        if (!port.isEmpty()) {
+            try {
+                String address = config.getProperty("MetricsAddress", "127.0.0.1");
+                HttpServer server = HttpServer.create(
+                        new InetSocketAddress(address, Integer.parseInt(port)), 0);
+                server.createContext("/metrics", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type",
+                                "text/plain; version=0.0.4; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        OutputStream output = exchange.getResponseBody();
+                        output.write(body);
+                        output.close();
+                    }
+                });
+                server.start();
+                Log.info("Metrics on http://" + address + ":"
+                        + server.getAddress().getPort() + "/metrics");
+            } catch (IOException e) {
+                Log.error("Metrics endpoint on port " + port + ": " + e.getMessage());
+            }
+        }
+
+        if (!"false".equals(config.getProperty("MetricsJmx"))) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                        new ObjectName("p2p:type=" + type + ",name=" + ObjectName.quote(name)));
+            } catch (Exception e) {
+                Log.error("Metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The value of every series as an MBean attribute, histograms
+     *         as their count, sum, median and 99th percentile
+     */
+    private Map<String, Number> attributes() {
+        Map<String, Number> attributes = new LinkedHashMap<String, Number>();
+        for (Family family : families()) {
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String name = family.label == null ? family.name
+                        : family.name + "{" + family.label + "=" + series.getKey() + "}";
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    attributes.put(name + "_count", histogram.getCount());
+                    attributes.put(name + "_sum", histogram.getSum());
+                    attributes.put(name + "_p50", histogram.quantile(0.5));
+                    attributes.put(name + "_p99", histogram.quantile(0.99));
+                } else {
+                    attributes.put(name, value(metric));
+                }
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> attribute : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(attribute.getKey(),
+                    attribute.getValue().getClass().getName(), attribute.getKey(),
+                    true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of the program",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
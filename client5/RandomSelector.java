@@ -0,0 +1,35 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects a random missing chunk
+ */
+public class RandomSelector implements ChunkSelector {
+
+    @Override
+    public int select(ChunkBitmap source, ChunkBitmap target) {
+        long[] candidates = source.missingIn(target);
+
+        // Count the candidates, then pick the n-th one
+        int total = 0;
+        for (long word : candidates) {
+            total += Long.bitCount(word);
+        }
+        if (total == 0) {
+            return -1;
+        }
+        int n = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < candidates.length; i++) {
+            long word = candidates[i];
+            int count = Long.bitCount(word);
+            if (n < count) {
+                // Drop the lowest n bits of the word
+                for (int j = 0; j < n; j++) {
+                    word &= word - 1;
+                }
+                return i * 64 + Long.numberOfTrailingZeros(word) + 1;
+            }
+            n -= count;
+        }
+        return -1;
+    }
+}
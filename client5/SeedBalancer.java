@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Balances the download between the seed servers
+ *
+ * Every seed first sends its share of its own shard. A seed which is done
+ * takes over part of what the busiest seed (the one with the most time left
+ * at its measured rate) still has to send, in proportion to the rates of the
+ * two: the busy seed is told to skip the chunks and the idle one to send
+ * them. Once every seed is idle, all of them are told that no more chunks are
+ * needed.
+ */
+public class SeedBalancer {
+
+    // The seeds
+    private final List<SeedConnection> seeds;
+
+    // Chunks owned
+    private final ChunkBitmap chunkStatus;
+
+    // Chunks moved from one seed to another
+    private final BitSet moved = new BitSet();
+
+    /**
+     * Constructor
+     *
+     * @param seeds       The seeds
+     * @param chunkStatus Chunks owned
+     */
+    public SeedBalancer(List<SeedConnection> seeds, ChunkBitmap chunkStatus) {
+        this.seeds = seeds;
+        this.chunkStatus = chunkStatus;
+    }
+
+    /**
+     * Called when a seed has nothing more to send
+     *
+     * @param seed the seed
+     */
+    public synchronized void idle(SeedConnection seed) {
+        // Find the seed which needs the most time to finish
+        SeedConnection slow = null;
+        double slowTime = 0;
+        for (SeedConnection other : seeds) {
+            if (other == seed || other.isIdle() || other.remaining() == 0) {
+                continue;
+            }
+            double rate = other.rate();
+            double time = rate > 0 ? other.remaining() / rate : Double.MAX_VALUE;
+            if (slow == null || time > slowTime) {
+                slow = other;
+                slowTime = time;
+            }
+        }
+
+        if (slow != null) {
+            // Split what is left so that both seeds finish at about the same
+            // time, half and half while a rate is not measured yet
+            double fast = seed.rate();
+            double rate = slow.rate();
+            int count = fast > 0 && rate > 0
+                    ? (int) (slow.remaining() * fast / (fast + rate))
+                    : slow.remaining() / 2;
+            List<Integer> chunkIds = pick(slow, count);
+            if (!chunkIds.isEmpty()) {
+                try {
+                    slow.skipChunks(chunkIds);
+                    seed.sendChunks(chunkIds);
+                    Log.info("Moved " + chunkIds.size() + " chunks from seed "
+                            + slow.getName() + " to seed " + seed.getName());
+                    return;
+                } catch (IOException e) {
+                    Log.error(e.getMessage());
+                }
+            }
+        }
+
+        // Nothing to take over, finish once no seed sends anything
+        for (SeedConnection other : seeds) {
+            if (!other.isIdle()) {
+                return;
+            }
+        }
+        for (SeedConnection other : seeds) {
+            other.finish();
+        }
+    }
+
+    /**
+     * Picks chunks I do not own from the shard of a seed, from a random place
+     * on: the seed sends its chunks rarest first, so any of them may still be
+     * waiting, and the other clients moving chunks at the same time seldom
+     * pick the same ones
+     *
+     * @param seed  the seed
+     * @param count Number of chunks
+     * @return ids of the chunks
+     */
+    private List<Integer> pick(SeedConnection seed, int count) {
+        List<Integer> chunkIds = new ArrayList<Integer>();
+        int shardSize = seed.getLastChunk() - seed.getFirstChunk() + 1;
+        int start = shardSize > 0 ? ThreadLocalRandom.current().nextInt(shardSize) : 0;
+        for (int i = 0; i < shardSize && chunkIds.size() < count; i++) {
+            int chunkId = seed.getFirstChunk() + (start + i) % shardSize;
+            if (!chunkStatus.get(chunkId) && !moved.get(chunkId)) {
+                moved.set(chunkId);
+                chunkIds.add(chunkId);
+            }
+        }
+        return chunkIds;
+    }
+}
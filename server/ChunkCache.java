@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of chunks shared by all the connections
+ *
+ * The chunks are kept in direct buffers, outside of the Java heap, and the
+ * least recently used chunks are evicted once the cache is full. Lookups hold
+ * the lock only to update the order, the chunks are read outside of it.
+ */
+public class ChunkCache {
+
+    // Maximum number of bytes cached
+    private final long capacity;
+
+    // Number of bytes cached
+    private long size;
+
+    // Cached chunks by id, least recently used first
+    private final LinkedHashMap<Integer, ByteBuffer> chunks =
+            new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+
+    // Number of chunks found in the cache
+    private final LongAdder hits = new LongAdder();
+
+    // Number of chunks not found in the cache
+    private final LongAdder misses = new LongAdder();
+
+    // Number of chunks evicted
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param capacity Maximum number of bytes cached
+     */
+    public ChunkCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a chunk
+     *
+     * @param chunkId id of the chunk
+     * @return A read-only view of the chunk, or null if it is not cached
+     */
+    public ByteBuffer get(int chunkId) {
+        ByteBuffer chunk = peek(chunkId);
+        if (chunk == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return chunk;
+    }
+
+    /**
+     * Looks up a chunk without counting a hit or a miss, to go on with a
+     * chunk which is partly sent
+     *
+     * @param chunkId id of the chunk
+     * @return A read-only view of the chunk, or null if it is not cached
+     */
+    public ByteBuffer peek(int chunkId) {
+        ByteBuffer chunk;
+        synchronized (this) {
+            chunk = chunks.get(chunkId);
+        }
+        return chunk == null ? null : chunk.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a chunk, evicting the least recently used chunks to make room
+     *
+     * @param chunkId id of the chunk
+     * @param chunk   bytes of the chunk (a direct buffer, not changed later)
+     */
+    public void put(int chunkId, ByteBuffer chunk) {
+        int length = chunk.remaining();
+        if (length > capacity) {
+            return;
+        }
+        synchronized (this) {
+            ByteBuffer old = chunks.put(chunkId, chunk);
+            if (old != null) {
+                size -= old.remaining();
+            }
+            size += length;
+
+            Iterator<Map.Entry<Integer, ByteBuffer>> eldest = chunks.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= eldest.next().getValue().remaining();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return Number of chunks found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of chunks not found in the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of chunks evicted
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Number of bytes cached
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The metrics of the cache
+     */
+    public String report() {
+        long hit = getHits();
+        long total = hit + getMisses();
+        return "Chunk cache: " + hit + " hits, " + getMisses() + " misses ("
+                + (total == 0 ? 0 : hit * 100 / total) + "% hit rate), "
+                + getEvictions() + " evictions, " + getSize() / 1024 + " KB of "
+                + capacity / 1024 + " KB used";
+    }
+}
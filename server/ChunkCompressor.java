@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compresses the chunks sent to the clients which negotiated a codec
+ *
+ * The chunks are compressed by a pool of workers and kept compressed in a
+ * bounded cache per codec, so every chunk is compressed once however many
+ * clients get it, and a chunk asked for by several connections at once is
+ * compressed by a single worker. Chunks which do not compress are remembered
+ * and always sent raw.
+ */
+public class ChunkCompressor {
+
+    // Chunks of the file
+    private final ChunkStore store;
+
+    // Workers compressing the chunks
+    private final ExecutorService pool;
+
+    // Capacity of the cache of each codec, in bytes
+    private final long cacheSize;
+
+    // Compressed chunks by codec id
+    private final ConcurrentMap<Integer, ChunkCache> caches =
+            new ConcurrentHashMap<Integer, ChunkCache>();
+
+    // Chunks being compressed, by key
+    private final ConcurrentMap<Long, Future<ByteBuffer>> pending =
+            new ConcurrentHashMap<Long, Future<ByteBuffer>>();
+
+    // Chunks sent raw, by key
+    private final Set<Long> raw = ConcurrentHashMap.newKeySet();
+
+    // Chunks compressed at least once, by key: a chunk evicted from the
+    // cache is compressed again but counted once
+    private final Set<Long> counted = ConcurrentHashMap.newKeySet();
+
+    // Buffer each worker compresses into, as big as the largest chunk it
+    // compressed, so that only the exact copy kept in the cache is allocated
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+
+    // Number of chunks compressed, once each
+    private final LongAdder compressed = new LongAdder();
+
+    // Number of chunks left raw
+    private final LongAdder incompressible = new LongAdder();
+
+    // Bytes saved by compressing the chunks, counted once per chunk
+    private final LongAdder saved = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param store     Chunks of the file
+     * @param cacheSize Capacity of the cache of each codec, in bytes
+     * @param threads   Number of workers
+     */
+    public ChunkCompressor(ChunkStore store, long cacheSize, int threads) {
+        this.store = store;
+        this.cacheSize = cacheSize;
+
+        // The workers never keep the server running
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "compressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates the compressor set up in the config: CompressionThreads and
+     * CompressionCacheMB
+     *
+     * @param config Config of the program
+     * @param store  Chunks of the file
+     * @return The compressor, or null if Compression lists no codec
+     */
+    public static ChunkCompressor create(Properties config, ChunkStore store) {
+        if (Compression.offer(config) == 0) {
+            return null;
+        }
+        int threads = Integer.parseInt(config.getProperty("CompressionThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long cacheSize = Long.parseLong(config.getProperty("CompressionCacheMB", "64")) << 20;
+        return new ChunkCompressor(store, cacheSize, Math.max(1, threads));
+    }
+
+    /**
+     * Gets a chunk compressed, waiting for a worker to compress it if needed
+     *
+     * @param chunkId id of the chunk
+     * @param codec   the codec
+     * @return A read-only view of the compressed chunk,
+     *         or null if the chunk is sent raw
+     */
+    public ByteBuffer get(int chunkId, ChunkCodec codec) throws IOException {
+        ByteBuffer chunk = cache(codec).get(chunkId);
+        if (chunk != null || raw.contains(key(chunkId, codec))) {
+            return chunk;
+        }
+        try {
+            chunk = submit(chunkId, codec).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compressing chunk " + chunkId + " interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return chunk == null ? null : chunk.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a chunk compressed if it is ready, never waits: a chunk not
+     * compressed yet is handed to a worker for the next time
+     *
+     * @param chunkId id of the chunk
+     * @param codec   the codec
+     * @return A read-only view of the compressed chunk,
+     *         or null if the chunk is sent raw this time
+     */
+    public ByteBuffer peek(int chunkId, ChunkCodec codec) {
+        ByteBuffer chunk = cache(codec).get(chunkId);
+        if (chunk == null && !raw.contains(key(chunkId, codec))) {
+            submit(chunkId, codec);
+        }
+        return chunk;
+    }
+
+    /**
+     * Hands a chunk to a worker, unless one is compressing it already
+     *
+     * @return The compressed chunk when it is done (null if sent raw)
+     */
+    private Future<ByteBuffer> submit(final int chunkId, final ChunkCodec codec) {
+        final Long key = key(chunkId, codec);
+        FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                return compress(chunkId, codec);
+            }
+        }) {
+            @Override
+            protected void done() {
+                pending.remove(key, this);
+            }
+        };
+        Future<ByteBuffer> running = pending.putIfAbsent(key, task);
+        if (running != null) {
+            return running;
+        }
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Compresses a chunk into the cache (run by a worker)
+     *
+     * @return The compressed chunk, or null if it is sent raw
+     */
+    private ByteBuffer compress(int chunkId, ChunkCodec codec) throws IOException {
+        ByteBuffer chunk = store.read(chunkId);
+        ByteBuffer target = scratch.get();
+        if (target == null || target.capacity() < chunk.remaining()) {
+            target = ByteBuffer.allocateDirect(chunk.remaining());
+            scratch.set(target);
+        }
+        target.clear().limit(chunk.remaining());
+        int n = Compression.compress(codec, chunk, target);
+        if (n < 0) {
+            raw.add(key(chunkId, codec));
+            incompressible.increment();
+            return null;
+        }
+
+        // Keep an exact copy, the scratch buffer is as big as a chunk
+        target.flip();
+        ByteBuffer result = ByteBuffer.allocateDirect(n);
+        result.put(target).flip();
+        cache(codec).put(chunkId, result);
+        if (counted.add(key(chunkId, codec))) {
+            compressed.increment();
+            saved.add(chunk.remaining() - n);
+        }
+        return result;
+    }
+
+    /**
+     * @return The cache of a codec
+     */
+    private ChunkCache cache(ChunkCodec codec) {
+        ChunkCache cache = caches.get(codec.getId());
+        if (cache == null) {
+            ChunkCache created = new ChunkCache(cacheSize);
+            cache = caches.putIfAbsent(codec.getId(), created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return The key of a chunk compressed with a codec
+     */
+    private static Long key(int chunkId, ChunkCodec codec) {
+        return ((long) codec.getId() << 32) | chunkId;
+    }
+
+    /**
+     * @return Number of chunks compressed, once each
+     */
+    public long getCompressed() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return Number of chunks left raw because they do not compress
+     */
+    public long getIncompressible() {
+        return incompressible.sum();
+    }
+
+    /**
+     * @return Bytes saved by compressing the chunks, counted once per chunk
+     */
+    public long getSaved() {
+        return saved.sum();
+    }
+}
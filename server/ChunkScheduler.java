@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which chunk the server sends next, shared by all the connections
+ *
+ * Every connection takes the chunk with the lowest replication count (the
+ * number of clients which own the chunk or are being sent it) that its
+ * client does not own yet, so the upload bandwidth of the server always goes
+ * to the rarest chunks. The chunks of the shard are kept in a bucket per
+ * count, so the search goes through the rarest buckets instead of the whole
+ * shard; it skips the runs of chunks the client owns with nextClearBit. The
+ * counts are changed under the lock of the scheduler. Chunks sent to a
+ * client which stops acknowledging them are released, so that the other
+ * connections send them instead.
+ *
+ * With several seed servers every seed only hands out the chunks of its own
+ * shard, a contiguous range of chunk ids.
+ */
+public class ChunkScheduler {
+
+    // First chunk of the shard of this seed
+    private final int firstChunk;
+
+    // Last chunk of the shard of this seed
+    private final int lastChunk;
+
+    // Replication count of each chunk (index 0 is not used)
+    private final int[] copies;
+
+    // Chunks of the shard by replication count (bit id)
+    private final List<BitSet> buckets = new ArrayList<BitSet>();
+
+    // Chunks released by a stalled client and not taken again (bit id)
+    private final BitSet released = new BitSet();
+
+    // Number of chunks stalled clients were supposed to get and did not
+    private int spare;
+
+    // Where the next search starts, so that the connections spread out
+    private int cursor;
+
+    // Sessions which are sending chunks
+    private final Set<ServerSession> sessions =
+            ConcurrentHashMap.<ServerSession>newKeySet();
+
+    /**
+     * Constructor
+     *
+     * @param chunkNum   Number of chunks
+     * @param firstChunk First chunk of the shard of this seed
+     * @param lastChunk  Last chunk of the shard of this seed
+     */
+    public ChunkScheduler(int chunkNum, int firstChunk, int lastChunk) {
+        this.firstChunk = firstChunk;
+        this.lastChunk = lastChunk;
+        this.copies = new int[chunkNum + 1];
+        BitSet none = new BitSet(chunkNum + 1);
+        if (firstChunk <= lastChunk) {
+            none.set(firstChunk, lastChunk + 1);
+        }
+        buckets.add(none);
+    }
+
+    /**
+     * Takes the rarest chunk a client does not own
+     *
+     * @param owned       Chunks the client owns or is being sent (bit id)
+     * @param orphansOnly true to only take the chunks no client owns which
+     *                    were released or left over by a stalled client
+     * @return Id of the chunk, or 0 if there is none
+     */
+    public synchronized int next(BitSet owned, boolean orphansOnly) {
+        if (getShardSize() <= 0) {
+            return 0;
+        }
+        int start = firstChunk + Math.floorMod(cursor++, getShardSize());
+        int chunkId = 0;
+        if (orphansOnly) {
+            // Any chunk nobody has while stalled clients left some over
+            chunkId = find(spare > 0 ? buckets.get(0) : released, owned, start);
+            if (chunkId > 0 && !released.get(chunkId)) {
+                spare--;
+            }
+        } else {
+            for (int count = 0; count < buckets.size() && chunkId == 0; count++) {
+                chunkId = find(buckets.get(count), owned, start);
+            }
+        }
+        if (chunkId > 0) {
+            released.clear(chunkId);
+            count(chunkId, 1);
+        }
+        return chunkId;
+    }
+
+    /**
+     * Finds a chunk of a bucket the client does not own, from start to the
+     * end of the shard and then from its beginning
+     *
+     * @return Id of the chunk, or 0 if there is none
+     */
+    private int find(BitSet bucket, BitSet owned, int start) {
+        int chunkId = find(bucket, owned, start, lastChunk);
+        return chunkId > 0 ? chunkId : find(bucket, owned, firstChunk, start - 1);
+    }
+
+    /**
+     * @return Id of a chunk of a bucket between from and to the client does
+     *         not own, or 0 if there is none
+     */
+    private static int find(BitSet bucket, BitSet owned, int from, int to) {
+        int chunkId = bucket.nextSetBit(from);
+        while (chunkId >= 0 && chunkId <= to) {
+            if (!owned.get(chunkId)) {
+                return chunkId;
+            }
+            chunkId = bucket.nextSetBit(owned.nextClearBit(chunkId));
+        }
+        return 0;
+    }
+
+    /**
+     * Changes the replication count of a chunk, the caller holds the lock
+     *
+     * @param chunkId the id of chunk
+     * @param delta   1 or -1
+     * @return The new count
+     */
+    private int count(int chunkId, int delta) {
+        int count = copies[chunkId] + delta;
+        if (count < 0) {
+            return 0;
+        }
+        copies[chunkId] = count;
+        if (inShard(chunkId)) {
+            buckets.get(count - delta).clear(chunkId);
+            if (count == buckets.size()) {
+                buckets.add(new BitSet(lastChunk + 1));
+            }
+            buckets.get(count).set(chunkId);
+        }
+        return count;
+    }
+
+    /**
+     * Finds the shard of a seed
+     *
+     * @param chunkNum  Number of chunks
+     * @param seedId    Id of the seed, from 1
+     * @param seedCount Number of seeds
+     * @return [first chunk, last chunk] of the shard
+     */
+    public static int[] shard(int chunkNum, int seedId, int seedCount) {
+        int first = (int) ((long) (seedId - 1) * chunkNum / seedCount) + 1;
+        int last = (int) ((long) seedId * chunkNum / seedCount);
+        return new int[] {first, last};
+    }
+
+    /**
+     * @return First chunk of the shard of this seed
+     */
+    public int getFirstChunk() {
+        return firstChunk;
+    }
+
+    /**
+     * @return Last chunk of the shard of this seed
+     */
+    public int getLastChunk() {
+        return lastChunk;
+    }
+
+    /**
+     * @return Number of chunks in the shard of this seed
+     */
+    public int getShardSize() {
+        return lastChunk - firstChunk + 1;
+    }
+
+    /**
+     * @param chunkId the id of chunk
+     * @return true if the chunk belongs to the shard of this seed
+     */
+    public boolean inShard(int chunkId) {
+        return chunkId >= firstChunk && chunkId <= lastChunk;
+    }
+
+    /**
+     * Counts a chunk a client owns or gets from somewhere else
+     *
+     * @param chunkId the id of chunk
+     * @return The replication count of the chunk before
+     */
+    public synchronized int add(int chunkId) {
+        released.clear(chunkId);
+        return count(chunkId, 1) - 1;
+    }
+
+    /**
+     * Gives a chunk back when it was not delivered
+     *
+     * @param chunkId the id of chunk
+     */
+    public synchronized void release(int chunkId) {
+        if (count(chunkId, -1) == 0) {
+            released.set(chunkId);
+        }
+    }
+
+    /**
+     * Hands the chunks a stalled client was supposed to get over to the
+     * other clients
+     *
+     * @param count Number of chunks
+     */
+    public synchronized void giveUp(int count) {
+        spare += count;
+    }
+
+    /**
+     * Watches a session for stalls
+     *
+     * @param session the session
+     */
+    public void register(ServerSession session) {
+        sessions.add(session);
+    }
+
+    /**
+     * Stops watching a session
+     *
+     * @param session the session
+     */
+    public void unregister(ServerSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * @return Number of sessions sending chunks
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Number of chunks sent by all the sessions and not acknowledged
+     *         yet
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (ServerSession session : sessions) {
+            inFlight += session.getInFlight();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Starts a thread which releases the chunks of stalled sessions
+     *
+     * @param stallTimeout Milliseconds without acknowledgement after which
+     *                     a session is stalled
+     */
+    public void startWatchdog(final long stallTimeout) {
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1, stallTimeout / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    for (ServerSession session : sessions) {
+                        session.checkStall(now, stallTimeout);
+                    }
+                }
+            }
+        }, "scheduler-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The chunks served by the server
+ *
+ * Chunks are either read from the split chunk files (spt/) or sliced out of
+ * a read-only memory mapping of the original file.
+ */
+public class ChunkStore {
+
+    // Directory of the split chunks (split mode)
+    private final String chunkDir;
+
+    // Mapped regions of the original file (mmap mode)
+    private final MappedByteBuffer[] regions;
+
+    // Number of chunks in each mapped region
+    private final int chunksPerRegion;
+
+    // Size of each chunk
+    private final int chunkSize;
+
+    // Size of the original file
+    private final long fileSize;
+
+    // Chunks kept in memory (split mode), or null
+    private final ChunkCache cache;
+
+    // Time to read a chunk file into the cache
+    private final Histogram readLatency = new Histogram();
+
+    // Compresses the chunks for the clients which negotiated a codec, or null
+    private ChunkCompressor compressor;
+
+    /**
+     * Constructor of a store backed by the split chunk files
+     *
+     * @param chunkDir Directory of the chunks
+     */
+    public ChunkStore(String chunkDir) {
+        this(chunkDir, null);
+    }
+
+    /**
+     * Constructor of a store backed by the split chunk files, keeping the
+     * recently sent chunks in memory
+     *
+     * @param chunkDir Directory of the chunks
+     * @param cache    Chunks kept in memory, or null
+     */
+    public ChunkStore(String chunkDir, ChunkCache cache) {
+        this.chunkDir = chunkDir;
+        this.cache = cache;
+        this.regions = null;
+        this.chunksPerRegion = 0;
+        this.chunkSize = 0;
+        this.fileSize = 0;
+    }
+
+    /**
+     * Constructor of a store backed by a memory mapping of the file
+     *
+     * @param file      File to be distributed
+     * @param chunkSize Size of each chunk
+     */
+    public ChunkStore(File file, int chunkSize) throws IOException {
+        this.chunkDir = null;
+        this.cache = null;
+        this.chunkSize = chunkSize;
+        this.fileSize = file.length();
+
+        // A mapping is limited to 2 GB, so map the file in regions which
+        // always hold a whole number of chunks
+        this.chunksPerRegion = Integer.MAX_VALUE / chunkSize;
+        long regionSize = (long) chunksPerRegion * chunkSize;
+        int n = (int) ((fileSize + regionSize - 1) / regionSize);
+        this.regions = new MappedByteBuffer[n];
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            for (int i = 0; i < n; i++) {
+                long position = i * regionSize;
+                long size = Math.min(regionSize, fileSize - position);
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+        } finally {
+            // The mapping stays valid after the file is closed
+            input.close();
+        }
+    }
+
+    /**
+     * @return Chunks kept in memory, or null
+     */
+    public ChunkCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return Compresses the chunks for the clients which negotiated a
+     *         codec, or null if the server does not compress
+     */
+    public ChunkCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @param compressor Compresses the chunks, or null
+     */
+    public void setCompressor(ChunkCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return Time to read a chunk file into the cache (chunks sent without
+     *         a cache go from the file to the socket without being read)
+     */
+    public Histogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * @return true if the chunks are served from a memory mapping
+     */
+    public boolean isMapped() {
+        return regions != null;
+    }
+
+    /**
+     * @param chunkId id of the chunk
+     * @return Number of bytes of the chunk
+     */
+    public int length(int chunkId) throws IOException {
+        if (isMapped()) {
+            long offset = (long) (chunkId - 1) * chunkSize;
+            return (int) Math.min(chunkSize, fileSize - offset);
+        }
+        if (cache != null) {
+            ByteBuffer chunk = cache.peek(chunkId);
+            if (chunk != null) {
+                return chunk.remaining();
+            }
+        }
+        return (int) new File(chunkDir + chunkId).length();
+    }
+
+    /**
+     * Opens the file of a chunk which is sent from it, for a connection which
+     * writes the chunk in several parts and keeps the file open meanwhile
+     *
+     * @param chunkId id of the chunk
+     * @return The chunk file, to be closed by the caller, or null if the
+     *         chunk is sent from memory (mmap mode or cache)
+     */
+    public FileChannel open(int chunkId) throws IOException {
+        if (isMapped() || cache != null) {
+            return null;
+        }
+        return new FileInputStream(chunkDir + chunkId).getChannel();
+    }
+
+    /**
+     * Writes a part of a chunk to a channel
+     *
+     * @param chunkId  id of the chunk
+     * @param position position in the chunk to start from
+     * @param channel  target channel
+     * @return Number of bytes written
+     */
+    public long transfer(int chunkId, long position, WritableByteChannel channel)
+            throws IOException {
+        int length = length(chunkId);
+
+        if (isMapped()) {
+            // Slice the chunk out of its region
+            int index = chunkId - 1;
+            ByteBuffer slice = regions[index / chunksPerRegion].duplicate();
+            int offset = (index % chunksPerRegion) * chunkSize;
+            slice.limit(offset + length);
+            slice.position(offset + (int) position);
+            return channel.write(slice);
+        }
+
+        if (cache != null) {
+            // Write from the cached copy, read the chunk file once on a miss
+            ByteBuffer chunk = position == 0 ? cache.get(chunkId) : cache.peek(chunkId);
+            if (chunk == null) {
+                chunk = load(chunkId);
+                cache.put(chunkId, chunk);
+                chunk = chunk.asReadOnlyBuffer();
+            }
+            chunk.position((int) position);
+            return channel.write(chunk);
+        }
+
+        // Transfer from the chunk file straight to the channel
+        FileChannel input = new FileInputStream(chunkDir + chunkId).getChannel();
+        try {
+            return input.transferTo(position, length - position, channel);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads a whole chunk
+     *
+     * @param chunkId id of the chunk
+     * @return A read-only view of the bytes of the chunk
+     */
+    public ByteBuffer read(int chunkId) throws IOException {
+        if (isMapped()) {
+            int index = chunkId - 1;
+            ByteBuffer slice = regions[index / chunksPerRegion].duplicate();
+            int offset = (index % chunksPerRegion) * chunkSize;
+            slice.limit(offset + length(chunkId));
+            slice.position(offset);
+            return slice.slice().asReadOnlyBuffer();
+        }
+        if (cache != null) {
+            ByteBuffer chunk = cache.peek(chunkId);
+            if (chunk == null) {
+                chunk = load(chunkId);
+                cache.put(chunkId, chunk);
+                chunk = chunk.asReadOnlyBuffer();
+            }
+            return chunk;
+        }
+        return load(chunkId).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a chunk file into a direct buffer
+     *
+     * @param chunkId id of the chunk
+     * @return Bytes of the chunk
+     */
+    private ByteBuffer load(int chunkId) throws IOException {
+        long start = System.nanoTime();
+        FileChannel input = new FileInputStream(chunkDir + chunkId).getChannel();
+        try {
+            ByteBuffer chunk = ByteBuffer.allocateDirect((int) input.size());
+            while (chunk.hasRemaining() && input.read(chunk) >= 0) {
+            }
+            chunk.flip();
+            return chunk;
+        } finally {
+            input.close();
+            readLatency.recordSince(start);
+        }
+    }
+}
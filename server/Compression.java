@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The compression of the chunks on the wire
+ *
+ * Compression lists the codecs in the order they are preferred (lz, deflate,
+ * or none). The receiving side offers the codecs it knows, the sending side
+ * picks the first of its own list which is offered. A chunk is sent raw
+ * anyway if a sample of its bytes looks random (already compressed data), or
+ * if compressing it does not save enough.
+ */
+public final class Compression {
+
+    // Ids of the codecs in the protocol, a bit each in the offer
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int LZ = 2;
+
+    // The codecs by id
+    private static final ChunkCodec[] CODECS = {null, new DeflateCodec(), new LzCodec()};
+
+    // Bytes sampled to estimate the entropy of a chunk, in runs of RUN bytes
+    private static final int SAMPLE = 4096;
+    private static final int RUN = 256;
+
+    // Bits per byte above which a chunk is not worth compressing (random
+    // bytes come out at about 7.95 from a sample this size)
+    private static final double MAX_ENTROPY = 7.5;
+
+    private Compression() {
+    }
+
+    /**
+     * @param config Config of the program
+     * @return The ids of the codecs of Compression, the preferred first
+     */
+    private static List<Integer> preferred(Properties config) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : config.getProperty("Compression", "none").split(",")) {
+            for (int id = 1; id < CODECS.length; id++) {
+                if (CODECS[id].getName().equals(name.trim().toLowerCase())) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param config Config of the program
+     * @return The codecs this side can receive, a bit (1 << id) each,
+     *         0 if none
+     */
+    public static int offer(Properties config) {
+        int offer = 0;
+        for (int id : preferred(config)) {
+            offer |= 1 << id;
+        }
+        return offer;
+    }
+
+    /**
+     * Picks the codec to send with
+     *
+     * @param config Config of the program
+     * @param offer  The codecs the other side can receive
+     * @return Id of the codec, NONE if there is none in common
+     */
+    public static int choose(Properties config, int offer) {
+        for (int id : preferred(config)) {
+            if ((offer & (1 << id)) != 0) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param id Id of a codec
+     * @return The codec, or null for NONE or an unknown id
+     */
+    public static ChunkCodec codec(int id) {
+        return id > 0 && id < CODECS.length ? CODECS[id] : null;
+    }
+
+    /**
+     * Estimates whether a chunk compresses, from the entropy of the bytes of
+     * a few runs spread over it
+     *
+     * @param chunk bytes of the chunk, from position to limit (not changed)
+     * @return true if the chunk is worth compressing
+     */
+    public static boolean isCompressible(ByteBuffer chunk) {
+        int length = chunk.remaining();
+        int runs = Math.max(1, Math.min(SAMPLE, length) / RUN);
+        int run = Math.min(RUN, length);
+        int[] counts = new int[256];
+        int sampled = 0;
+        for (int r = 0; r < runs; r++) {
+            int start = chunk.position() + (int) ((long) (length - run) * r / runs);
+            for (int i = start; i < start + run; i++) {
+                counts[chunk.get(i) & 0xff]++;
+            }
+            sampled += run;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) <= MAX_ENTROPY;
+    }
+
+    /**
+     * Compresses a chunk if that saves at least 1/16 of it
+     *
+     * @param codec the codec
+     * @param src   bytes of the chunk, from position to limit (not changed)
+     * @param dst   buffer the compressed bytes are put into from its position
+     * @return Number of compressed bytes,
+     *         or -1 if the chunk should be sent raw (dst is then undefined)
+     */
+    public static int compress(ChunkCodec codec, ByteBuffer src, ByteBuffer dst) {
+        if (!isCompressible(src)) {
+            return -1;
+        }
+        int max = src.remaining() - src.remaining() / 16;
+        ByteBuffer target = dst.duplicate();
+        target.limit(Math.min(target.limit(), target.position() + max));
+        int n = codec.compress(src, target);
+        if (n < 0) {
+            return -1;
+        }
+        dst.position(dst.position() + n);
+        return n;
+    }
+}
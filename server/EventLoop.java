@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread running a selector which serves many client connections
+ */
+public class EventLoop extends Thread {
+
+    // Selector of the connections
+    private final Selector selector;
+
+    // Connections waiting to be registered with the selector
+    private final Queue<SocketChannel> accepted;
+
+    // Config of the program
+    private final Properties config;
+
+    // File to be distributed
+    private final ChunkFile file;
+
+    // Chunks of the file
+    private final ChunkStore store;
+
+    // Chooses the chunks to send
+    private final ChunkScheduler scheduler;
+
+    // Clients in the swarm
+    private final Membership membership;
+
+    // Metrics of the server
+    private final ServerMetrics metrics;
+
+    /**
+     * Constructor
+     *
+     * @param config     Config of the program
+     * @param file       File to be distributed
+     * @param store      Chunks of the file
+     * @param scheduler  Chooses the chunks to send
+     * @param membership Clients in the swarm
+     * @param metrics    Metrics of the server
+     */
+    public EventLoop(Properties config, ChunkFile file, ChunkStore store,
+                     ChunkScheduler scheduler, Membership membership, ServerMetrics metrics)
+            throws IOException {
+        this.config = config;
+        this.file = file;
+        this.store = store;
+        this.scheduler = scheduler;
+        this.membership = membership;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+    }
+
+    /**
+     * Hands a new connection over to this loop
+     *
+     * @param channel Client connection
+     */
+    public void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the thread
+     */
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+
+                // Register the new connections
+                SocketChannel channel;
+                while ((channel = accepted.poll()) != null) {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(config, file, store, scheduler, membership,
+                            metrics, key));
+                }
+
+                // Serve the ready connections
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((NioConnection) key.attachment()).handle();
+                }
+            } catch (IOException e) {
+                Log.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files distributed together, like the info of a torrent
+ *
+ * The files are laid end to end in path order and the chunks are cut out of
+ * the whole, so the chunk ids are global and small files share a chunk with
+ * their neighbours instead of costing a chunk each. A single file is a
+ * manifest of one entry.
+ */
+public class Manifest {
+
+    /**
+     * A file of the manifest
+     */
+    public static class Entry {
+
+        // Path of the file, relative to the root, with / separators
+        private final String path;
+
+        // Size of the file
+        private final long size;
+
+        // Position of the file in the whole
+        private final long offset;
+
+        /**
+         * Constructor
+         *
+         * @param path   Path of the file
+         * @param size   Size of the file
+         * @param offset Position of the file in the whole
+         */
+        Entry(String path, long size, long offset) {
+            this.path = path;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        /**
+         * @return Path of the file, relative to the root
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return Size of the file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Position of the file in the whole
+         */
+        public long getOffset() {
+            return offset;
+        }
+    }
+
+    // The files, in path order
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    // Size of all the files
+    private long totalSize;
+
+    /**
+     * Adds a file after the others
+     *
+     * @param path Path of the file, relative to the root
+     * @param size Size of the file
+     */
+    public void add(String path, long size) {
+        entries.add(new Entry(path, size, totalSize));
+        totalSize += size;
+    }
+
+    /**
+     * Lists a file, or all the files under a directory
+     *
+     * The paths start with the name of the file or directory, so they are
+     * relative to its parent.
+     *
+     * @param file the file or directory
+     * @return The manifest
+     */
+    public static Manifest scan(File file) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException("The input file does not exist");
+        }
+        Manifest manifest = new Manifest();
+        if (file.isFile()) {
+            manifest.add(file.getName(), file.length());
+            return manifest;
+        }
+
+        addTree(manifest, file, file.getName());
+        return manifest;
+    }
+
+    /**
+     * Adds the files under a directory, in path order
+     *
+     * @param manifest  the manifest
+     * @param directory the directory
+     * @param path      path of the directory in the manifest
+     */
+    private static void addTree(Manifest manifest, File directory, String path)
+            throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(directory, name);
+            if (file.isDirectory()) {
+                addTree(manifest, file, path + "/" + name);
+            } else if (file.isFile()) {
+                manifest.add(path + "/" + name, file.length());
+            }
+        }
+    }
+
+    /**
+     * Writes [number of files, (path, size)...]
+     *
+     * @param output output of the connection
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(entries.size());
+        for (Entry entry : entries) {
+            output.writeUTF(entry.path);
+            output.writeLong(entry.size);
+        }
+    }
+
+    /**
+     * Reads [number of files, (path, size)...]
+     *
+     * @param input input of the connection
+     * @return The manifest
+     */
+    public static Manifest read(DataInput input) throws IOException {
+        Manifest manifest = new Manifest();
+        int n = input.readInt();
+        for (int i = 0; i < n; i++) {
+            String path = input.readUTF();
+            long size = input.readLong();
+            // Never write outside of the root
+            if (path.isEmpty() || path.startsWith("/") || path.contains("\\")
+                    || ("/" + path + "/").contains("/../") || size < 0) {
+                throw new IOException("Invalid file " + path + " in the manifest");
+            }
+            manifest.add(path, size);
+        }
+        return manifest;
+    }
+
+    /**
+     * @return The files, in path order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return Size of all the files
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The files of a manifest, read and written as one range of bytes
+ *
+ * A chunk which spans several files is split at the file boundaries. The
+ * reads and writes are positional, so several threads may use the channel
+ * at once.
+ */
+public class ManifestChannel {
+
+    // Channel of each file, in the order of the manifest
+    private final FileChannel[] channels;
+
+    // Position of each file in the whole
+    private final long[] offsets;
+
+    // Size of each file
+    private final long[] sizes;
+
+    // Size of all the files
+    private final long totalSize;
+
+    /**
+     * Constructor, opens all the files
+     *
+     * @param root     Directory the paths of the manifest are relative to
+     * @param manifest The files
+     * @param write    true to create the files (and their directories) with
+     *                 their final size, false to only read them
+     */
+    public ManifestChannel(String root, Manifest manifest, boolean write) throws IOException {
+        List<Manifest.Entry> entries = manifest.getEntries();
+        this.channels = new FileChannel[entries.size()];
+        this.offsets = new long[entries.size()];
+        this.sizes = new long[entries.size()];
+        this.totalSize = manifest.getTotalSize();
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                Manifest.Entry entry = entries.get(i);
+                File file = new File(root, entry.getPath());
+                if (write) {
+                    File directory = file.getParentFile();
+                    if (directory != null && !directory.exists()) {
+                        directory.mkdirs();
+                    }
+                    RandomAccessFile output = new RandomAccessFile(file, "rw");
+                    output.setLength(entry.getSize());
+                    channels[i] = output.getChannel();
+                } else {
+                    channels[i] = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+                offsets[i] = entry.getOffset();
+                sizes[i] = entry.getSize();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads bytes at a position of the whole
+     *
+     * @param buffer   buffer filled from its position up to its limit, or
+     *                 up to the end of the files
+     * @param position position in the whole
+     * @return Number of bytes read
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining() && position < totalSize) {
+            int i = find(position);
+            ByteBuffer part = slice(buffer, sizes[i] - (position - offsets[i]));
+            int length = channels[i].read(part, position - offsets[i]);
+            if (length < 0) {
+                // The file is shorter than in the manifest
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            position += length;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Writes bytes at a position of the whole
+     *
+     * @param buffer   bytes to write, from position to limit (consumed)
+     * @param position position in the whole
+     */
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining() && position < totalSize) {
+            int i = find(position);
+            ByteBuffer part = slice(buffer, sizes[i] - (position - offsets[i]));
+            int length = channels[i].write(part, position - offsets[i]);
+            buffer.position(buffer.position() + length);
+            position += length;
+        }
+    }
+
+    /**
+     * Forces the written bytes to the disk
+     */
+    public void force() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Closes all the files
+     */
+    public void close() throws IOException {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return Size of all the files
+     */
+    public long size() {
+        return totalSize;
+    }
+
+    /**
+     * Finds the file holding a position, the last one starting at or before
+     * it, so that empty files are skipped
+     *
+     * @param position position in the whole, less than the total size
+     * @return Index of the file
+     */
+    private int find(long position) {
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param buffer the buffer
+     * @param max    maximum number of bytes
+     * @return A view of the buffer from its position holding at most max bytes
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long max) {
+        ByteBuffer part = buffer.duplicate();
+        part.limit(part.position() + (int) Math.min(part.remaining(), max));
+        return part;
+    }
+}
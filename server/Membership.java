@@ -0,0 +1,109 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The clients currently in the swarm
+ *
+ * A client joins once it has shaken hands and stays a member as long as its
+ * connection to the server is open. New clients get their Id and the list of
+ * the members to download from here.
+ */
+public class Membership {
+
+    /**
+     * A member of the swarm
+     */
+    public static class Member {
+
+        // Id of the client
+        private final int clientId;
+
+        // Address the client listens on for other clients
+        private final String host;
+
+        // Port the client listens on for other clients
+        private final int port;
+
+        /**
+         * Constructor
+         *
+         * @param clientId Id of the client
+         * @param host     Address the client listens on
+         * @param port     Port the client listens on
+         */
+        public Member(int clientId, String host, int port) {
+            this.clientId = clientId;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // Members by client Id
+    private final ConcurrentSkipListMap<Integer, Member> members =
+            new ConcurrentSkipListMap<Integer, Member>();
+
+    // Last Id given out
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    /**
+     * Gives out an Id no member uses
+     *
+     * @param firstId Lowest Id to give out
+     * @return the new Id
+     */
+    public int assignId(int firstId) {
+        while (true) {
+            int last = lastId.get();
+            int id = Math.max(last + 1, firstId);
+            if (lastId.compareAndSet(last, id) && !members.containsKey(id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Adds a member
+     *
+     * @param member the member
+     */
+    public void join(Member member) {
+        members.put(member.clientId, member);
+        Log.info("Client " + member.clientId + " joined, listening on "
+                + member.host + ":" + member.port + " (" + members.size() + " members)");
+    }
+
+    /**
+     * Removes a member, unless it has joined again on another connection
+     *
+     * @param member the member
+     */
+    public void leave(Member member) {
+        if (members.remove(member.clientId, member)) {
+            Log.info("Client " + member.clientId + " left ("
+                    + members.size() + " members)");
+        }
+    }
+
+    /**
+     * Writes [count, (clientId, host, port)...] with all the members but one,
+     * in ring order starting after that one
+     *
+     * @param output   output of the connection
+     * @param clientId Id of the client asking
+     */
+    public void writePeers(DataOutput output, int clientId) throws IOException {
+        List<Member> peers = new ArrayList<Member>(members.tailMap(clientId, false).values());
+        peers.addAll(members.headMap(clientId, false).values());
+
+        output.writeInt(peers.size());
+        for (Member peer : peers) {
+            output.writeInt(peer.clientId);
+            output.writeUTF(peer.host);
+            output.writeInt(peer.port);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+
+/**
+ * The state of one client connection served by an EventLoop
+ *
+ * The connection goes through the states HANDSHAKE, BITFIELD (version 3
+ * clients only), SENDING and MEMBER (version 5 clients only). Incoming
+ * bytes are collected until a whole message can be parsed, outgoing chunks
+ * are written as far as the socket accepts them.
+ *
+ * The loop never waits for the compressor: a client which negotiated a codec
+ * gets the chunks the workers already compressed, the others are sent raw
+ * while a worker compresses them for the next clients.
+ */
+public class NioConnection {
+
+    // Waiting for the handshake of the client
+    private static final int HANDSHAKE = 0;
+
+    // Sending chunks and reading acknowledgements
+    private static final int SENDING = 1;
+
+    // Waiting for the chunks the client already owns
+    private static final int BITFIELD = 2;
+
+    // All the chunks are sent, answering requests for the members
+    private static final int MEMBER = 3;
+
+    // Selection key of the connection
+    private final SelectionKey key;
+
+    // Client connection
+    private final SocketChannel channel;
+
+    // Chunks of the file
+    private final ChunkStore store;
+
+    // Protocol state of the connection
+    private final ServerSession session;
+
+    // Bytes received but not parsed yet
+    private ByteBuffer in;
+
+    // Bytes to send before the chunk body
+    private ByteBuffer out;
+
+    // [chunkId, length] sent before every chunk, reused
+    private final ByteBuffer header = ByteBuffer.allocateDirect(8);
+
+    // Current state
+    private int state;
+
+    // Id of the chunk being sent (0 if none)
+    private int chunkId;
+
+    // Number of bytes of the chunk sent so far
+    private long position;
+
+    // Number of bytes of the chunk
+    private int length;
+
+    // Compressed bytes of the chunk not sent yet, or null if it is sent raw
+    private ByteBuffer compressed;
+
+    // File of the current chunk, open until it is sent (split mode without
+    // a cache), or null
+    private FileChannel file;
+
+    // Time the chunk was started, in System.nanoTime()
+    private long started;
+
+    // true once the chunk Id 0 which ends the chunks is queued
+    private boolean ended;
+
+    /**
+     * Constructor
+     *
+     * @param config     Config of the program
+     * @param file       File to be distributed
+     * @param store      Chunks of the file
+     * @param scheduler  Chooses the chunks to send
+     * @param membership Clients in the swarm
+     * @param metrics    Metrics of the server
+     * @param key        Selection key of the connection
+     */
+    public NioConnection(Properties config, ChunkFile file, ChunkStore store,
+                         ChunkScheduler scheduler, Membership membership, ServerMetrics metrics,
+                         SelectionKey key) {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.store = store;
+        this.session = new ServerSession(config, file, scheduler, membership, metrics,
+                channel.socket().getInetAddress().getHostAddress());
+        this.in = ByteBuffer.allocate(64);
+        this.out = ByteBuffer.allocate(0);
+        this.state = HANDSHAKE;
+    }
+
+    /**
+     * Handles the ready operations of the connection
+     */
+    public void handle() {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Reads the available bytes and parses the complete messages
+     */
+    private void read() throws IOException {
+        if (!in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        if (channel.read(in) < 0) {
+            close();
+            return;
+        }
+
+        in.flip();
+        while (in.hasRemaining() && parse()) {
+        }
+        in.compact();
+    }
+
+    /**
+     * Parses one message from the received bytes
+     *
+     * @return true if a message was parsed
+     *         false if more bytes are needed
+     */
+    private boolean parse() throws IOException {
+        int start = in.position();
+        DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(in.array(), start, in.remaining()));
+        try {
+            if (state == HANDSHAKE) {
+                session.readHandshake(input);
+                in.position(in.limit() - input.available());
+                if (!session.isValid()) {
+                    close();
+                    return false;
+                }
+
+                // Queue [neighbourId, filename, size, totalChunks, sendChunks]
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                session.writeHeader(new DataOutputStream(bytes));
+                out = ByteBuffer.wrap(bytes.toByteArray());
+                state = session.expectsBitfield() ? BITFIELD : SENDING;
+                if (state == SENDING) {
+                    session.open();
+                }
+            } else if (state == BITFIELD) {
+                session.readBitfield(input);
+                in.position(in.limit() - input.available());
+
+                // Queue [number of chunks to send]
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                session.writeRemaining(new DataOutputStream(bytes));
+                queue(bytes.toByteArray());
+                state = SENDING;
+                session.open();
+            } else if (state == MEMBER) {
+                session.readPeerRequest(input);
+                in.position(in.limit() - input.available());
+
+                // Queue [count, (clientId, host, port)...]
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                session.writePeers(new DataOutputStream(bytes));
+                queue(bytes.toByteArray());
+            } else {
+                session.readAck(input);
+                in.position(in.limit() - input.available());
+            }
+        } catch (EOFException e) {
+            // The message is not complete yet
+            in.position(start);
+            return false;
+        }
+
+        // There may be something new to send
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    /**
+     * Queues bytes to send after the pending ones
+     *
+     * @param bytes the bytes
+     */
+    private void queue(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(out.remaining() + bytes.length);
+        buffer.put(out).put(bytes).flip();
+        out = buffer;
+    }
+
+    /**
+     * Writes as many bytes as the socket accepts
+     */
+    private void write() throws IOException {
+        while (true) {
+            // 1. Send the pending header bytes
+            if (out.hasRemaining()) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return;
+                }
+            }
+
+            // Wait for the chunks the client already owns, or for requests
+            // once all the chunks are sent
+            if (state == BITFIELD || state == MEMBER) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            // 2. Send the bytes of the current chunk
+            if (chunkId > 0) {
+                if (compressed != null) {
+                    channel.write(compressed);
+                    position = length - compressed.remaining();
+                } else if (file != null) {
+                    position += file.transferTo(position, length - position, channel);
+                } else {
+                    position += store.transfer(chunkId, position, channel);
+                }
+                if (position < length) {
+                    return;
+                }
+                session.chunkSent(length, started);
+                Log.chunk("Send {} to Client {}", chunkId, session.getClientId());
+                chunkId = 0;
+                compressed = null;
+                closeFile();
+            }
+
+            // 3. Take the next chunk
+            int next = session.nextChunk();
+            if (next == Protocol.IDLE) {
+                // Tell the client, then wait for what it asks for
+                header.clear();
+                header.putInt(Protocol.IDLE).flip();
+                out = header;
+                continue;
+            }
+            if (next == 0) {
+                // Wait for an acknowledgement
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (next < 0) {
+                // All the chunks are sent and acknowledged
+                if (session.sendsEndMarker() && !ended) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    session.writeEnd(new DataOutputStream(bytes));
+                    out = ByteBuffer.wrap(bytes.toByteArray());
+                    ended = true;
+                    continue;
+                }
+                if (session.isMember()) {
+                    // Stay connected while the client is in the swarm
+                    state = MEMBER;
+                    continue;
+                }
+                close();
+                return;
+            }
+
+            // Queue [chunkId, length], or [chunkId, -length] if compressed
+            chunkId = next;
+            started = System.nanoTime();
+            position = 0;
+            ChunkCodec codec = session.getCodec();
+            compressed = codec == null ? null : store.getCompressor().peek(chunkId, codec);
+            if (compressed == null) {
+                file = store.open(chunkId);
+            }
+            length = compressed != null ? compressed.remaining()
+                    : file != null ? (int) file.size() : store.length(chunkId);
+            header.clear();
+            header.putInt(chunkId).putInt(compressed != null ? -length : length).flip();
+            out = header;
+        }
+    }
+
+    /**
+     * Closes the connection
+     */
+    private void close() {
+        session.close();
+        key.cancel();
+        closeFile();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Closes the file of the current chunk, if it is open
+     */
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+            file = null;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Server class
@@ -17,12 +20,27 @@ public class Server {
     // File to be distributed
     private final ChunkFile file;
 
-    // Server connection
-    private final ServerSocket server;
+    // Chunks of the file
+    private final ChunkStore store;
+
+    // Chooses the chunks to send, shared by all the connections
+    private final ChunkScheduler scheduler;
+
+    // Clients in the swarm
+    private final Membership membership;
+
+    // Metrics of the server
+    private final ServerMetrics metrics;
+
+    // Server connection (channel based, so that chunks can be sent with zero copy)
+    private final ServerSocketChannel server;
 
     // Number connected clients
     private int connectedClients;
 
+    // Executor of the connection handlers
+    private final ExecutorService executor;
+
     /**
      * Constructor
      *
@@ -30,71 +48,224 @@ public class Server {
      * @param filename Name of the file
      * @param fileSize Size of the file
      * @param chunkNum Number of chunks
+     * @param hashes   Hash of each chunk, or null
+     * @param manifest  Files of the directory, or of the single file
+     * @param chunkSize Size of each chunk
+     * @param store     Chunks of the file
      */
-    public Server(Properties config, String filename, long fileSize, int chunkNum)
+    public Server(Properties config, String filename, long fileSize, int chunkNum,
+                  byte[][] hashes, Manifest manifest, int chunkSize, ChunkStore store)
             throws IOException {
 
         this.config = config;
-        this.file = new ChunkFile(chunkNum, fileSize, filename);
+        this.file = new ChunkFile(chunkNum, fileSize, filename, hashes, manifest, chunkSize);
+        this.store = store;
+        // Serve the shard of this seed
+        int[] shard = ChunkScheduler.shard(chunkNum,
+                Integer.parseInt(config.getProperty("SeedId", "1")),
+                Integer.parseInt(config.getProperty("SeedCount", "1")));
+        Log.info("Serving chunks " + shard[0] + " to " + shard[1]);
+        this.scheduler = new ChunkScheduler(chunkNum, shard[0], shard[1]);
+        this.scheduler.startWatchdog(Long.parseLong(config.getProperty("StallTimeout", "10000")));
+        this.membership = new Membership();
+        this.metrics = new ServerMetrics(scheduler, store);
         this.connectedClients = 0;
+        this.executor = ConnectionExecutor.create(config);
 
         // Get server port from the config
         int port = Integer.parseInt(config.getProperty("ServerPort"));
         // Start the server socket
-        this.server = new ServerSocket(port);
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
 
-        // Listen to the clients
-        startListening();
+        // Export the metrics once clients can connect, the endpoint is slow to open
+        this.metrics.export(config, config.getProperty("SeedId", "1"));
+    }
+
+    /**
+     * @return Port the server listens on (ServerPort = 0 takes any free port)
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
     }
 
     /**
      * Listens to the clients
      */
     public void startListening() {
+        if ("nio".equals(config.getProperty("ServerEngine"))) {
+            startEventLoops();
+            return;
+        }
 
-        // Get the total number of clients
+        // Get the total number of clients, a seeder serves clients forever
         int clients = Integer.parseInt(config.getProperty("ClientNumber"));
+        boolean seeder = "true".equals(config.getProperty("Seeder"));
 
         // If all the clients connected, exit the loop
-        while (connectedClients < clients) {
-            System.out.println("Waiting for connection...");
+        while (seeder || connectedClients < clients) {
+            Log.info("Waiting for connection...");
+
+            try {
+                // If a client is connected, start a handler
+                Socket socket = server.accept().socket();
+                executor.execute(new ServerHandler(config, file, store, scheduler, membership,
+                        metrics, socket));
+                connectedClients++;
+
+            } catch (IOException e) {
+                Log.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves any number of clients on a fixed number of event loops
+     */
+    private void startEventLoops() {
+        // Start the event loops
+        int n = Integer.parseInt(config.getProperty("EventLoops", "2"));
+        EventLoop[] loops = new EventLoop[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                loops[i] = new EventLoop(config, file, store, scheduler, membership, metrics);
+                loops[i].start();
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage());
+            return;
+        }
+
+        // Hand the connections over to the loops in turn
+        while (true) {
+            Log.info("Waiting for connection...");
 
             try {
-                // If a client is connected, start a handle thread
-                Socket socket = server.accept();
-                new ServerHandler(config, file, socket).start();
+                SocketChannel channel = server.accept();
+                loops[connectedClients % n].register(channel);
                 connectedClients++;
 
             } catch (IOException e) {
-                System.out.println("Error: " + e.getMessage());
+                Log.error(e.getMessage());
             }
         }
     }
 
+    /**
+     * Prints the metrics of the chunk cache now and then, if it was used
+     *
+     * @param cache    the cache
+     * @param interval milliseconds between two reports
+     */
+    private static void startCacheReport(final ChunkCache cache, final long interval) {
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lookups = 0;
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = cache.getHits() + cache.getMisses();
+                    if (now != lookups) {
+                        Log.info(cache.report());
+                        lookups = now;
+                    }
+                }
+            }
+        }, "cache-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Splits (or maps) and hashes a file, or the files of a directory, and
+     * opens the server socket
+     *
+     * @param config   Config of the program
+     * @param filename Name of the file or of the directory
+     * @return The server, not listening yet
+     */
+    public static Server open(Properties config, String filename) throws IOException {
+        Log.configure(config);
+        String chunkDir = config.getProperty("ChunkDir");
+
+        File file = new File(filename).getCanonicalFile();
+        Manifest manifest = Manifest.scan(file);
+        String root = file.getParent();
+        long size = manifest.getTotalSize();
+
+        // Choose the chunk size from the size of the file, or take
+        // ChunkSize if TargetChunks = 0
+        int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
+        int target = Integer.parseInt(config.getProperty("TargetChunks", "0"));
+        if (target > 0) {
+            chunkSize = SplitFiles.chooseChunkSize(size, target,
+                    Integer.parseInt(config.getProperty("MinChunkSize", "16384")),
+                    Integer.parseInt(config.getProperty("MaxChunkSize", "4194304")));
+        }
+        int threads = Integer.parseInt(config.getProperty("SplitThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean hashing = !"false".equals(config.getProperty("ChunkHashes"));
+        int n;
+        byte[][] hashes = null;
+        ChunkStore store;
+        boolean mapped = "mmap".equals(config.getProperty("ChunkSource"));
+        if (mapped && manifest.getEntries().size() > 1) {
+            // A chunk of a directory may span several files
+            Log.info("ChunkSource = mmap needs a single file, splitting the files");
+            mapped = false;
+        }
+        if (mapped) {
+            // Map the file and serve the chunks from the mapping
+            n = SplitFiles.countChunks(size, chunkSize);
+            if (hashing) {
+                hashes = SplitFiles.hash(chunkSize, root, manifest, threads);
+            }
+            store = new ChunkStore(file, chunkSize);
+        } else {
+            // Split the files into chunks
+            if (hashing) {
+                hashes = new byte[SplitFiles.countChunks(size, chunkSize) + 1][];
+            }
+            n = SplitFiles.split(chunkSize, chunkDir, root, manifest, threads, hashes);
+
+            // Keep the recently sent chunks in memory
+            long cacheSize = Long.parseLong(config.getProperty("ChunkCacheMB", "0")) << 20;
+            ChunkCache cache = null;
+            if (cacheSize > 0) {
+                cache = new ChunkCache(cacheSize);
+                startCacheReport(cache,
+                        Long.parseLong(config.getProperty("ChunkCacheReport", "10")) * 1000);
+            }
+            store = new ChunkStore(chunkDir, cache);
+        }
+
+        // Compress the chunks for the clients which negotiate a codec
+        store.setCompressor(ChunkCompressor.create(config, store));
+
+        return new Server(config, file.getName(), size, n, hashes, manifest, chunkSize, store);
+    }
+
     public static void main(String[] args) {
-        System.out.println("The file is running.");
+        Log.info("The file is running.");
         Scanner input = new Scanner(System.in);
         try {
             // Load config
             Properties config = new Properties();
             config.load(new FileInputStream("config.properties"));
 
-            int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
-            String chunkDir = config.getProperty("ChunkDir");
-
-            // Enter the filename
-            System.out.println("Enter the filename:");
+            // Enter the filename, or a directory to distribute all its files
+            Log.info("Enter the filename:");
             String filename = input.next();
 
-            // Split the file into chunks
-            File file = new File(filename);
-            int n = SplitFiles.split(chunkSize, chunkDir, file);
-
             // Start the server
-            new Server(config, file.getName(), file.length(), n);
+            open(config, filename).startListening();
 
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            Log.error(e.getMessage());
         }
     }
 }
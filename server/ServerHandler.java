@@ -1,11 +1,13 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
 
 /**
- * A server thread to handle the connection of one client
+ * A task to handle the connection of one client
  */
-public class ServerHandler extends Thread {
+public class ServerHandler implements Runnable {
 
     // Client connection
     private final Socket socket;
@@ -19,74 +21,100 @@ public class ServerHandler extends Thread {
     // File to be distributed
     private final ChunkFile file;
 
+    // Chunks of the file
+    private final ChunkStore store;
+
     // Config of the program
     private final Properties config;
 
-    // Client Id
-    private int clientId;
+    // Protocol state of the connection
+    private final ServerSession session;
 
     /**
      * Constructor
      *
-     * @param config Config of the program
-     * @param file   File to be distributed
-     * @param socket Client connection
+     * @param config     Config of the program
+     * @param file       File to be distributed
+     * @param store      Chunks of the file
+     * @param scheduler  Chooses the chunks to send
+     * @param membership Clients in the swarm
+     * @param metrics    Metrics of the server
+     * @param socket     Client connection
      */
-    public ServerHandler(Properties config, ChunkFile file, Socket socket)
-            throws IOException {
+    public ServerHandler(Properties config, ChunkFile file, ChunkStore store,
+                         ChunkScheduler scheduler, Membership membership, ServerMetrics metrics,
+                         Socket socket) throws IOException {
         this.config = config;
         this.file = file;
+        this.store = store;
+        this.session = new ServerSession(config, file, scheduler, membership, metrics,
+                socket.getInetAddress().getHostAddress());
         this.socket = socket;
         this.input = new DataInputStream(socket.getInputStream());
         this.output = new DataOutputStream(socket.getOutputStream());
     }
 
     /**
-     * Runs the thread
+     * Runs the task
      */
     public void run() {
         try {
-            // Get the total number of clients
-            int totalClients = Integer.parseInt(config.getProperty("ClientNumber"));
-
-            // Read client Id from the stream
-            clientId = input.readInt();
-            System.out.println("Client " + clientId + " is connected!");
-
-            if (clientId < 1 || clientId > totalClients) {
-                System.out.println("Error: Invalid client ID " + clientId);
+            // Read the handshake from the stream
+            session.readHandshake(input);
+            if (!session.isValid()) {
+                closeConnection();
                 return;
             }
 
-            // Calculates the number of chunks to send
-            int num = file.getChunkNum() / totalClients;
-            if (clientId == totalClients) {
-                num += file.getChunkNum() % totalClients;
-            }
-
-            // Calculates id of the first chunk
-            int startChunkId = (clientId - 1) * (file.getChunkNum() / totalClients) + 1;
-            System.out.println("Client " + clientId + " will get " + num + " chunks");
-
             // Send [neighbourId, filename, size, totalChunks, sendChunks] to the client
-            output.writeInt(clientId % totalClients + 1);
-            output.writeUTF(file.getFilename());
-            output.writeLong(file.getFileSize());
-            output.writeInt(file.getChunkNum());
-            output.writeInt(num);
+            session.writeHeader(output);
             output.flush();
 
-            // Send [num] chunks starting from [startChunkId]
-            for (int i = startChunkId; i < startChunkId + num; i++) {
-                // Send the i-th chunk to the client
-                sendChunk(i);
-                // Keep waiting until the client is ready
-                input.readUTF();
+            // A resuming client only gets the chunks it does not own yet
+            if (session.expectsBitfield()) {
+                session.readBitfield(input);
+                session.writeRemaining(output);
+                output.flush();
             }
+
+            // Send the chunks, keeping at most [window] chunks unacknowledged
+            session.open();
+            while (true) {
+                int chunkId = session.nextChunk();
+                if (chunkId == Protocol.IDLE) {
+                    // Tell the client, then wait for what it asks for
+                    output.writeInt(Protocol.IDLE);
+                    output.flush();
+                } else if (chunkId > 0) {
+                    // Send the chunk to the client
+                    sendChunk(chunkId);
+                } else if (chunkId == 0) {
+                    // Keep waiting until the client has room for more chunks
+                    session.readAck(input);
+                } else {
+                    session.writeEnd(output);
+                    output.flush();
+                    break;
+                }
+            }
+
+            // Answer the requests for the members until the client leaves
+            if (session.isMember()) {
+                while (true) {
+                    session.readPeerRequest(input);
+                    session.writePeers(output);
+                    output.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // The client closed the connection
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            Log.error(e.getMessage());
         }
 
+        // Give back the chunks which were not delivered
+        session.close();
+
         // Close the connection
         closeConnection();
     }
@@ -94,44 +122,53 @@ public class ServerHandler extends Thread {
     /**
      * Sends a chunk to the client
      *
+     * The bytes are transferred from the chunk store straight into the
+     * socket channel, so they never get copied into the Java heap. If the
+     * client negotiated a codec, the chunk is compressed by the workers of
+     * the compressor (once for all the clients) and sent with a negative
+     * length, unless it does not compress.
+     *
      * @param chunkId the id of chunk
      */
-    private void sendChunk(int chunkId) {
-        // Get the size of each chunk
-        int chunkSize = Integer.parseInt(config.getProperty("ChunkSize"));
-        byte[] bytes = new byte[chunkSize];
-
-        // Get the chunk directory
-        String chunkDir = config.getProperty("ChunkDir");
-        File inputFile = new File(chunkDir + chunkId);
-        FileInputStream input = null;
-
+    void sendChunk(int chunkId) {
         try {
+            long start = System.nanoTime();
+            SocketChannel channel = socket.getChannel();
+            ChunkCodec codec = session.getCodec();
+            ByteBuffer compressed = codec == null ? null
+                    : store.getCompressor().get(chunkId, codec);
+
             // 1. Send the chunk Id
             output.writeInt(chunkId);
 
-            // Read the bytes of chunks from the file
-            input = new FileInputStream(inputFile);
-            int length = input.read(bytes);
-
-            // 2. Send the number of bytes
-            output.writeInt(length);
-
-            // 3. Send the bytes
-            output.write(bytes, 0, length);
-            output.flush();
-            System.out.println("Send " + chunkId + " to Client " + clientId);
-
-        } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            int length;
+            if (compressed != null) {
+                // 2. Send the number of compressed bytes, negative
+                length = compressed.remaining();
+                output.writeInt(-length);
+                output.flush();
 
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
+                // 3. Send the compressed bytes
+                while (compressed.hasRemaining()) {
+                    channel.write(compressed);
+                }
+            } else {
+                // 2. Send the number of bytes
+                length = store.length(chunkId);
+                output.writeInt(length);
+                output.flush();
+
+                // 3. Send the bytes from the store to the socket
+                long position = 0;
+                while (position < length) {
+                    position += store.transfer(chunkId, position, channel);
                 }
             }
+            session.chunkSent(length, start);
+            Log.chunk("Send {} to Client {}", chunkId, session.getClientId());
+
+        } catch (IOException e) {
+            Log.error(e.getMessage());
         }
     }
 
@@ -0,0 +1,150 @@
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the server: what is sent to whom, how long chunks take to
+ * be sent and acknowledged, and how busy the connections and the disk are
+ */
+public class ServerMetrics {
+
+    // All the metrics, exported
+    private final Metrics registry = new Metrics();
+
+    // Number of chunks sent
+    private final LongAdder chunksSent;
+
+    // Number of chunks acknowledged
+    private final LongAdder chunksAcked;
+
+    // Time to write a chunk into a connection
+    private final Histogram sendLatency;
+
+    // Time from sending a chunk to its acknowledgement
+    private final Histogram ackLatency;
+
+    /**
+     * Constructor
+     *
+     * @param scheduler Chooses the chunks to send
+     * @param store     Chunks of the file
+     */
+    public ServerMetrics(final ChunkScheduler scheduler, ChunkStore store) {
+        chunksSent = registry.counter("p2p_chunks_sent_total", "Chunks sent to the clients");
+        registry.gauge("p2p_chunks_sent_per_second", "Chunks sent per second",
+                Metrics.rate(chunksSent));
+        chunksAcked = registry.counter("p2p_chunks_acked_total",
+                "Chunks acknowledged by the clients");
+        sendLatency = registry.histogram("p2p_chunk_send_seconds",
+                "Time to write a chunk into a connection");
+        ackLatency = registry.histogram("p2p_chunk_ack_seconds",
+                "Time from sending a chunk to its acknowledgement");
+
+        registry.gauge("p2p_connections", "Clients being sent chunks", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return scheduler.getSessionCount();
+            }
+        });
+        registry.gauge("p2p_chunks_in_flight", "Chunks sent and not acknowledged yet",
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return scheduler.getInFlight();
+                    }
+                });
+        registry.gauge("p2p_shard_delivered_percent",
+                "Chunks acknowledged, in percent of the shard of this seed", new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return Math.min(100, chunksAcked.sum() * 100.0 / scheduler.getShardSize());
+                    }
+                });
+
+        registry.histogram("p2p_disk_read_seconds",
+                "Time to read a chunk file into the cache", store.getReadLatency());
+        final ChunkCache cache = store.getCache();
+        if (cache != null) {
+            registry.counter("p2p_cache_hits_total", "Chunks found in the cache",
+                    new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return cache.getHits();
+                        }
+                    });
+            registry.counter("p2p_cache_misses_total", "Chunks not found in the cache",
+                    new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return cache.getMisses();
+                        }
+                    });
+        }
+
+        final ChunkCompressor compressor = store.getCompressor();
+        if (compressor != null) {
+            registry.counter("p2p_chunks_compressed_total", "Chunks compressed, once each",
+                    new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return compressor.getCompressed();
+                        }
+                    });
+            registry.counter("p2p_chunks_incompressible_total",
+                    "Chunks sent raw because they do not compress", new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return compressor.getIncompressible();
+                        }
+                    });
+            registry.counter("p2p_compression_saved_bytes_total",
+                    "Bytes saved by compressing the chunks, once per chunk", new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return compressor.getSaved();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * @param clientId Id of the client
+     * @return The counter of the bytes of the chunks sent to the client
+     */
+    public LongAdder bytesSent(int clientId) {
+        return registry.counter("p2p_chunk_bytes_sent_total", "Bytes of the chunks sent",
+                "peer", "client " + clientId);
+    }
+
+    /**
+     * Counts a chunk written into a connection
+     *
+     * @param bytesSent counter of the client
+     * @param length    Number of bytes of the chunk
+     * @param start     Time the chunk was started, in System.nanoTime()
+     */
+    public void chunkSent(LongAdder bytesSent, int length, long start) {
+        sendLatency.recordSince(start);
+        chunksSent.increment();
+        bytesSent.add(length);
+    }
+
+    /**
+     * Counts a chunk acknowledged by its client
+     *
+     * @param sent Time the chunk was sent, in System.nanoTime()
+     */
+    public void chunkAcked(long sent) {
+        ackLatency.recordSince(sent);
+        chunksAcked.increment();
+    }
+
+    /**
+     * Exports the metrics (see Metrics.export)
+     *
+     * @param config Config of the program
+     * @param seedId Id of the seed
+     */
+    public void export(Properties config, String seedId) {
+        registry.export(config, "Server", seedId);
+    }
+}
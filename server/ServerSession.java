@@ -0,0 +1,668 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protocol state of one client connection
+ *
+ * The session only decides what is sent and when, the I/O itself is done by
+ * a ServerHandler thread or by an EventLoop. Which chunks are sent is decided
+ * by the ChunkScheduler shared by all the sessions.
+ */
+public class ServerSession {
+
+    // File to be distributed
+    private final ChunkFile file;
+
+    // Config of the program
+    private final Properties config;
+
+    // Chooses the chunks to send
+    private final ChunkScheduler scheduler;
+
+    // Clients in the swarm
+    private final Membership membership;
+
+    // Metrics of the server
+    private final ServerMetrics metrics;
+
+    // Bytes of the chunks sent to the client, looked up with the first chunk
+    private LongAdder bytesSent;
+
+    // Address of the client
+    private final String host;
+
+    // Client Id
+    private int clientId;
+
+    // Port the client listens on for other clients (version 5)
+    private int listenPort;
+
+    // The client as a member of the swarm (version 5), null before it joins
+    private Membership.Member member;
+
+    // Number of chunks which may be sent without acknowledgement
+    private int window;
+
+    // true if the client uses the old stop-and-wait protocol
+    private boolean legacy;
+
+    // Version of the extended handshake used by the client
+    private int version;
+
+    // Codec the chunks are compressed with (version 9), or null
+    private ChunkCodec codec;
+
+    // Number of chunks to send (version 4 clients also get the chunks released
+    // by stalled clients after that)
+    private int total;
+
+    // Number of chunks taken from the scheduler
+    private int sent;
+
+    // Number of chunks sent and not acknowledged yet
+    private int inFlight;
+
+    // Number of chunks acknowledged
+    private int acked;
+
+    // Chunks the client owns or is being sent (bit id)
+    private final BitSet owned = new BitSet();
+
+    // Chunks sent and not acknowledged yet, oldest first
+    private final Deque<Integer> unacked = new ArrayDeque<Integer>();
+
+    // Chunks released on a stall and not acknowledged yet, oldest first,
+    // counted again by the scheduler if the client acknowledges them late
+    private final Deque<Integer> stalled = new ArrayDeque<Integer>();
+
+    // Chunks counted by a cumulative acknowledgement (bit id), which may
+    // have been another chunk verified first
+    private final BitSet counted = new BitSet();
+
+    // Time each chunk not acknowledged yet was sent, in System.nanoTime()
+    private final Map<Integer, Long> sentTimes = new HashMap<Integer, Long>();
+
+    // Chunks which failed verification and must be sent again, and chunks
+    // the client asked for (version 6)
+    private final Queue<Integer> resend = new ArrayDeque<Integer>();
+
+    // true once the client was told there is nothing more to send (version 6)
+    private boolean idle;
+
+    // true once the client needs no more chunks (version 6)
+    private boolean done;
+
+    // Time of the last acknowledgement, or of the first chunk sent after it
+    private long lastAck;
+
+    /**
+     * Constructor
+     *
+     * @param config     Config of the program
+     * @param file       File to be distributed
+     * @param scheduler  Chooses the chunks to send
+     * @param membership Clients in the swarm
+     * @param metrics    Metrics of the server
+     * @param host       Address of the client
+     */
+    public ServerSession(Properties config, ChunkFile file, ChunkScheduler scheduler,
+                         Membership membership, ServerMetrics metrics, String host) {
+        this.config = config;
+        this.file = file;
+        this.scheduler = scheduler;
+        this.membership = membership;
+        this.metrics = metrics;
+        this.host = host;
+    }
+
+    /**
+     * Reads the handshake of the client
+     *
+     * Old clients only send their Id, new clients start with Protocol.MAGIC
+     * followed by the version, their Id and their window size. Version 5
+     * clients also send the port they listen on, and Id 0 to get an Id
+     * from the server. Version 9 clients then offer the codecs they can
+     * decompress.
+     *
+     * @param input input of the connection
+     */
+    public void readHandshake(DataInput input) throws IOException {
+        int first = input.readInt();
+        if (first != Protocol.MAGIC) {
+            // Old client: stop-and-wait
+            clientId = first;
+            window = 1;
+            legacy = true;
+            Log.info("Client " + clientId + " is connected!");
+            return;
+        }
+
+        version = input.readInt();
+        int id = input.readInt();
+        window = Math.max(1, input.readInt());
+        if (version >= 5) {
+            listenPort = input.readInt();
+        }
+        if (version >= 9) {
+            codec = Compression.codec(Compression.choose(config, input.readInt()));
+        }
+        legacy = false;
+
+        // Ids given out start after the configured clients
+        clientId = id;
+        if (clientId == 0 && version >= 5) {
+            int totalClients = Integer.parseInt(config.getProperty("ClientNumber"));
+            clientId = membership.assignId(totalClients + 1);
+        }
+        Log.info("Client " + clientId + " is connected!");
+        Log.info("Client " + clientId + " uses protocol " + version
+                + " with window " + window
+                + (codec == null ? "" : " and " + codec.getName() + " compression"));
+    }
+
+    /**
+     * @return true if the client Id is valid
+     */
+    public boolean isValid() {
+        // A seeder serves any number of clients
+        int totalClients = Integer.parseInt(config.getProperty("ClientNumber"));
+        boolean seeder = "true".equals(config.getProperty("Seeder"));
+        if (clientId < 1 || (clientId > totalClients && !seeder)) {
+            Log.error("Invalid client ID " + clientId);
+            return false;
+        }
+        // Older clients take the chunk size from their own config
+        if ((legacy || version < 8)
+                && file.getChunkSize() != Integer.parseInt(config.getProperty("ChunkSize"))) {
+            Log.error("Client " + clientId + " cannot take chunks of "
+                    + file.getChunkSize() + " bytes");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes [neighbourId, filename, size, totalChunks, sendChunks] to the client,
+     * preceded by [clientId] for version 5 clients and followed by
+     * [firstChunk, lastChunk] of the shard for version 6 clients, the files
+     * for version 7 clients, the chunk size for version 8 clients and the
+     * codec for version 9 clients
+     *
+     * @param output output of the connection
+     */
+    public void writeHeader(DataOutput output) throws IOException {
+        // Get the total number of clients
+        int totalClients = Integer.parseInt(config.getProperty("ClientNumber"));
+
+        // Calculates the number of chunks of the shard to send, the remainder
+        // is spread over the first clients
+        int num = scheduler.getShardSize() / totalClients;
+        if (clientId <= scheduler.getShardSize() % totalClients) {
+            num++;
+        }
+
+        total = num;
+        Log.info("Client " + clientId + " will get " + num + " chunks");
+
+        if (isMember()) {
+            output.writeInt(clientId);
+        }
+        output.writeInt(clientId % totalClients + 1);
+        output.writeUTF(file.getFilename());
+        output.writeLong(file.getFileSize());
+        output.writeInt(file.getChunkNum());
+        output.writeInt(num);
+
+        // Send the hashes of the chunks
+        if (!legacy && version >= 2) {
+            if (file.hasHashes()) {
+                output.writeInt(file.getChunkNum());
+                for (int i = 1; i <= file.getChunkNum(); i++) {
+                    output.write(file.getHash(i));
+                }
+            } else {
+                output.writeInt(0);
+            }
+        }
+        if (!legacy && version >= 6) {
+            output.writeInt(scheduler.getFirstChunk());
+            output.writeInt(scheduler.getLastChunk());
+        }
+        if (!legacy && version >= 7) {
+            file.getManifest().write(output);
+        }
+        if (!legacy && version >= 8) {
+            output.writeInt(file.getChunkSize());
+        }
+        if (!legacy && version >= 9) {
+            output.writeInt(codec == null ? Compression.NONE : codec.getId());
+        }
+    }
+
+    /**
+     * @return true if the client sends the chunks it already owns after
+     *         the header (version 3)
+     */
+    public boolean expectsBitfield() {
+        return !legacy && version >= 3;
+    }
+
+    /**
+     * Reads [number of words, words] with the chunks the client already owns
+     * and leaves them out of the chunks to send
+     *
+     * @param input input of the connection
+     */
+    public void readBitfield(DataInput input) throws IOException {
+        int words = input.readInt();
+        if (words < 0 || words > (file.getChunkNum() + 63) / 64) {
+            throw new IOException("Invalid bitfield of " + words + " words");
+        }
+
+        // Read the whole bitfield before applying it: the NIO engine parses
+        // it again from the start when it arrives split across reads
+        long[] bits = new long[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = input.readLong();
+        }
+
+        int count = 0;
+        for (int i = 0; i < words; i++) {
+            long word = bits[i];
+            for (int bit = 0; bit < 64; bit++) {
+                int chunkId = i * 64 + bit + 1;
+                if ((word & (1L << bit)) != 0 && chunkId <= file.getChunkNum()) {
+                    owned.set(chunkId);
+                    scheduler.add(chunkId);
+                    if (scheduler.inShard(chunkId)) {
+                        count++;
+                    }
+                }
+            }
+        }
+
+        // The chunks the client already owns count as sent
+        int num = Math.max(0, total - count);
+        if (count > 0) {
+            Log.info("Client " + clientId + " resumes with " + count
+                    + " chunks, it gets " + num + " more");
+        }
+        total = num;
+    }
+
+    /**
+     * Writes the number of chunks which will really be sent (version 3)
+     *
+     * @param output output of the connection
+     */
+    public void writeRemaining(DataOutput output) throws IOException {
+        output.writeInt(total);
+    }
+
+    /**
+     * @return true if the client reads the chunks until a chunk Id 0
+     *         instead of counting them (version 4)
+     */
+    public boolean sendsEndMarker() {
+        return !legacy && version >= 4;
+    }
+
+    /**
+     * Writes the chunk Id 0 which ends the chunks (version 4)
+     *
+     * @param output output of the connection
+     */
+    public void writeEnd(DataOutput output) throws IOException {
+        if (sendsEndMarker()) {
+            output.writeInt(0);
+        }
+    }
+
+    /**
+     * @return true if the client tells when it needs no more chunks from
+     *         this seed, and may ask for more before (version 6)
+     */
+    public boolean waitsForDone() {
+        return !legacy && version >= 6;
+    }
+
+    /**
+     * Takes the next chunk to send
+     *
+     * @return Id of the chunk to send,
+     *         0 if the window is full and an acknowledgement must be read first,
+     *         Protocol.IDLE if the client must be told that there is nothing
+     *         more to send (then a message of the client must be read)
+     *         or -1 if all the chunks are sent and acknowledged
+     */
+    public synchronized int nextChunk() {
+        if (inFlight < window) {
+            // Chunks which failed verification go first
+            int chunkId = resend.isEmpty() ? take() : resend.poll();
+            if (chunkId > 0) {
+                if (inFlight == 0) {
+                    lastAck = System.currentTimeMillis();
+                }
+                inFlight++;
+                unacked.add(chunkId);
+                sentTimes.put(chunkId, System.nanoTime());
+                return chunkId;
+            }
+        }
+        if (inFlight > 0 || (waitsForDone() && !done && idle)) {
+            return 0;
+        }
+        if (waitsForDone() && !done) {
+            idle = true;
+            return Protocol.IDLE;
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a new chunk from the scheduler
+     *
+     * @return Id of the chunk, or 0 if there is none
+     */
+    private int take() {
+        int chunkId;
+        if (sent < total) {
+            chunkId = scheduler.next(owned, false);
+        } else if (sendsEndMarker()) {
+            // Take over the chunks of stalled clients
+            chunkId = scheduler.next(owned, true);
+        } else {
+            return 0;
+        }
+        if (chunkId > 0) {
+            owned.set(chunkId);
+            sent++;
+        }
+        return chunkId;
+    }
+
+    /**
+     * Reads an acknowledgement of the client
+     *
+     * @param input input of the connection
+     */
+    public void readAck(DataInput input) throws IOException {
+        if (legacy) {
+            // Old clients send "OK" after every chunk
+            input.readUTF();
+            acknowledge(acked + 1);
+        } else {
+            // New clients send the cumulative number of received chunks,
+            // or -chunkId if the chunk must be sent again
+            int ack = input.readInt();
+            if (ack == Protocol.SEND_CHUNKS || ack == Protocol.SKIP_CHUNKS) {
+                int count = input.readInt();
+                if (count < 0 || count > file.getChunkNum()) {
+                    throw new IOException("Invalid list of " + count + " chunks");
+                }
+                int[] chunkIds = new int[count];
+                for (int i = 0; i < count; i++) {
+                    chunkIds[i] = file.checkChunkId(input.readInt());
+                }
+                if (ack == Protocol.SEND_CHUNKS) {
+                    sendChunks(chunkIds);
+                } else {
+                    skipChunks(chunkIds);
+                }
+            } else if (ack == Protocol.DONE) {
+                finish();
+            } else {
+                acknowledge(ack);
+            }
+        }
+    }
+
+    /**
+     * Queues chunks the client asked for because this seed is faster than
+     * the seed of their shard (version 6)
+     *
+     * @param chunkIds ids of the chunks
+     */
+    private synchronized void sendChunks(int[] chunkIds) {
+        for (int chunkId : chunkIds) {
+            if (!owned.get(chunkId)) {
+                owned.set(chunkId);
+                scheduler.add(chunkId);
+                resend.add(chunkId);
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * Leaves out chunks the client gets from a faster seed (version 6)
+     *
+     * The chunks count as owned by the client. A chunk another client owns
+     * already (sent by this seed, or skipped by it too) does not make the
+     * chunks of the shard any fewer, so the chunk the client does not get
+     * instead is handed over to the other sessions like the share of a
+     * stalled client.
+     *
+     * @param chunkIds ids of the chunks
+     */
+    private synchronized void skipChunks(int[] chunkIds) {
+        for (int chunkId : chunkIds) {
+            if (!owned.get(chunkId)) {
+                owned.set(chunkId);
+                int copies = scheduler.add(chunkId);
+                if (total > sent) {
+                    total--;
+                    if (copies > 0 && scheduler.inShard(chunkId)) {
+                        scheduler.giveUp(1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends the chunks once the ones in flight are acknowledged (version 6)
+     */
+    private synchronized void finish() {
+        done = true;
+    }
+
+    /**
+     * Applies an acknowledgement (read without holding the lock, so that
+     * the watchdog is never blocked by a waiting connection)
+     *
+     * @param ack cumulative number of received chunks, or -chunkId
+     * @throws IOException if the client acknowledges chunks it was not sent
+     */
+    private synchronized void acknowledge(int ack) throws IOException {
+        lastAck = System.currentTimeMillis();
+        if (ack < 0) {
+            int chunkId = -ack;
+            Log.chunk("Client {} asks for chunk {} again", clientId, chunkId);
+            if (stalled.remove(chunkId)) {
+                // Released, it is being sent to the client again
+                scheduler.add(chunkId);
+            } else if (unacked.remove(chunkId)) {
+                sentTimes.remove(chunkId);
+            } else if (counted.get(chunkId) && !(stalled.isEmpty() && unacked.isEmpty())) {
+                // Verified out of order: a cumulative acknowledgement counted
+                // the chunk instead of a later one, which is still waiting
+                countOldest();
+            } else {
+                throw new IOException("Client " + clientId + " asks again for chunk "
+                        + chunkId + " which is not in flight");
+            }
+            counted.clear(chunkId);
+            resend.add(chunkId);
+            inFlight--;
+        } else {
+            int waiting = stalled.size() + unacked.size();
+            if (ack < acked || ack - acked > waiting) {
+                throw new IOException("Client " + clientId + " acknowledges " + ack
+                        + " chunks, " + (acked + waiting) + " were sent");
+            }
+            // The chunks are verified in about the order they were sent
+            for (int i = acked; i < ack; i++) {
+                countOldest();
+            }
+            inFlight -= ack - acked;
+            acked = ack;
+        }
+    }
+
+    /**
+     * Counts the oldest chunk in flight as acknowledged
+     */
+    private void countOldest() {
+        Integer chunkId = stalled.poll();
+        if (chunkId != null) {
+            // Released as stalled, the client got it after all
+            scheduler.add(chunkId);
+        } else {
+            chunkId = unacked.poll();
+            Long sent = sentTimes.remove(chunkId);
+            if (sent != null) {
+                metrics.chunkAcked(sent);
+            }
+        }
+        counted.set(chunkId);
+    }
+
+    /**
+     * Releases the chunks sent to the client if it has not acknowledged
+     * anything for a while, so that other clients get them
+     *
+     * @param now          current time in milliseconds
+     * @param stallTimeout milliseconds without acknowledgement
+     */
+    public synchronized void checkStall(long now, long stallTimeout) {
+        if (unacked.isEmpty() || now - lastAck < stallTimeout) {
+            return;
+        }
+        Log.warn("Client " + clientId + " stalled, releasing "
+                + unacked.size() + " chunks");
+        release(false);
+    }
+
+    /**
+     * @return true if the client stays a member of the swarm while the
+     *         connection is open, and may ask for the members (version 5)
+     */
+    public boolean isMember() {
+        return !legacy && version >= 5;
+    }
+
+    /**
+     * Reads a request for the members of the swarm (version 5)
+     *
+     * @param input input of the connection
+     */
+    public void readPeerRequest(DataInput input) throws IOException {
+        int request = input.readInt();
+        if (request != 0) {
+            throw new IOException("Invalid request " + request);
+        }
+    }
+
+    /**
+     * Writes [count, (clientId, host, port)...] with the other members
+     *
+     * @param output output of the connection
+     */
+    public void writePeers(DataOutput output) throws IOException {
+        membership.writePeers(output, clientId);
+    }
+
+    /**
+     * Starts watching the session for stalls, and adds a version 5 client
+     * to the swarm
+     */
+    public void open() {
+        scheduler.register(this);
+        if (isMember()) {
+            member = new Membership.Member(clientId, host, listenPort);
+            membership.join(member);
+        }
+    }
+
+    /**
+     * Releases the chunks which were not acknowledged when the connection ends,
+     * and removes the client from the swarm
+     */
+    public synchronized void close() {
+        scheduler.unregister(this);
+        if (member != null) {
+            membership.leave(member);
+        }
+        release(true);
+    }
+
+    /**
+     * Gives the chunks which were not acknowledged, and the chunks which were
+     * not sent yet, back to the scheduler
+     *
+     * @param closing true if the connection ends
+     */
+    private void release(boolean closing) {
+        for (int chunkId : unacked) {
+            scheduler.release(chunkId);
+        }
+        if (closing) {
+            stalled.clear();
+        } else {
+            stalled.addAll(unacked);
+        }
+        unacked.clear();
+        sentTimes.clear();
+
+        // Clients before version 4 wait for exactly [total] chunks, they
+        // keep their share while they are connected
+        if (sent < total && (closing || sendsEndMarker())) {
+            scheduler.giveUp(total - sent);
+            total = sent;
+        }
+    }
+
+    /**
+     * Counts a chunk written into the connection
+     *
+     * @param length Number of bytes of the chunk
+     * @param start  Time the chunk was started, in System.nanoTime()
+     */
+    public void chunkSent(int length, long start) {
+        if (bytesSent == null) {
+            bytesSent = metrics.bytesSent(clientId);
+        }
+        metrics.chunkSent(bytesSent, length, start);
+    }
+
+    /**
+     * @return Number of chunks sent and not acknowledged yet
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Client Id
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return Codec the chunks are compressed with, or null
+     */
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+}
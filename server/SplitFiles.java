@@ -1,77 +1,269 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Splits a file, or the files of a manifest laid end to end, into chunk
+ * files and computes the hashes of the chunks
+ *
+ * The files are opened once and read with positional reads by a fixed number
+ * of workers, each reusing its own buffer.
+ */
 public class SplitFiles {
 
+    // Hash algorithm of the chunks
+    public static final String HASH_ALGORITHM = "SHA-256";
+
     /**
-     * Splits a file into several chunks
+     * Work done on every chunk of the file
+     */
+    private interface ChunkTask {
+
+        /**
+         * @param chunkId id of the chunk
+         * @param buffer  bytes of the chunk
+         */
+        void process(int chunkId, ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Splits a file into several chunks using one worker per processor
      */
     public static int split(int chunkSize, String chunkDir, File file)
             throws IOException {
-        // File does not exist
-        if (!file.exists()) {
-            throw new FileNotFoundException("The input file does not exist");
-        }
+        file = file.getAbsoluteFile();
+        return split(chunkSize, chunkDir, file.getParent(), Manifest.scan(file),
+                Runtime.getRuntime().availableProcessors(), null);
+    }
 
+    /**
+     * Splits a file into several chunks
+     *
+     * @param chunkSize size of each chunk
+     * @param chunkDir  directory of the chunks
+     * @param root      directory the paths of the manifest are relative to
+     * @param manifest  files to split
+     * @param threads   number of workers
+     * @param hashes    hashes of the chunks, filled if not null
+     *                  (index 0 is not used)
+     * @return Number of chunks
+     */
+    public static int split(int chunkSize, final String chunkDir, String root,
+                            Manifest manifest, int threads, final byte[][] hashes)
+            throws IOException {
         // Create the chunk directory (spt/)
         File directory = new File(chunkDir);
         if (!directory.exists()) {
             directory.mkdir();
         }
 
+        int n = forEachChunk(chunkSize, root, manifest, threads, "Splitting", new ChunkTask() {
+            @Override
+            public void process(int chunkId, ByteBuffer buffer) throws IOException {
+                // Hash the chunk
+                if (hashes != null) {
+                    hashes[chunkId] = hash(buffer.duplicate());
+                }
+                // Store the chunk to the file system
+                save(chunkDir + chunkId, buffer);
+            }
+        });
+        Log.info("Splitting file finished!");
+        return n;
+    }
+
+    /**
+     * Computes the hashes of the chunks of the files without splitting them
+     *
+     * @param chunkSize size of each chunk
+     * @param root      directory the paths of the manifest are relative to
+     * @param manifest  the files
+     * @param threads   number of workers
+     * @return Hashes of the chunks (index 0 is not used)
+     */
+    public static byte[][] hash(int chunkSize, String root, Manifest manifest, int threads)
+            throws IOException {
+        final byte[][] hashes = new byte[countChunks(manifest.getTotalSize(), chunkSize) + 1][];
+
+        forEachChunk(chunkSize, root, manifest, threads, "Hashing", new ChunkTask() {
+            @Override
+            public void process(int chunkId, ByteBuffer buffer) {
+                hashes[chunkId] = hash(buffer);
+            }
+        });
+        Log.info("Hashing file finished!");
+        return hashes;
+    }
+
+    /**
+     * Computes the hash of a chunk
+     *
+     * @param buffer bytes of the chunk
+     * @return The hash
+     */
+    public static byte[] hash(ByteBuffer buffer) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            digest.update(buffer);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs a task on every chunk of the files
+     *
+     * @param chunkSize size of each chunk
+     * @param root      directory the paths of the manifest are relative to
+     * @param manifest  the files
+     * @param threads   number of workers
+     * @param label     name of the task, in the progress lines
+     * @param task      the task
+     * @return Number of chunks
+     */
+    private static int forEachChunk(final int chunkSize, String root, Manifest manifest,
+                                    int threads, String label, final ChunkTask task)
+            throws IOException {
         // Calculate the number of chunks
-        long totalSize = file.length();
-        System.out.println("File size is " + totalSize);
-        System.out.println("Each chunk size is " + chunkSize);
-        int n = (int) (totalSize / chunkSize);
-        if (totalSize % chunkSize != 0) {
-            n++;
+        long totalSize = manifest.getTotalSize();
+        if (manifest.getEntries().size() > 1) {
+            Log.info("There are " + manifest.getEntries().size() + " files");
         }
-        System.out.println("There are " + n + " chunks!");
+        Log.info("File size is " + totalSize);
+        Log.info("Each chunk size is " + chunkSize);
+        final int n = countChunks(totalSize, chunkSize);
+        Log.info("There are " + n + " chunks!");
 
+        // Open the files once, read-only
+        final ManifestChannel input = new ManifestChannel(root, manifest, false);
 
-        // Split the file into n chunks
-        byte[] bytes = new byte[chunkSize];
-        System.out.print("Splitting");
-        for (int i = 0; i < n; i++) {
-            // Seek the file to the i-th chunk
-            RandomAccessFile reader = new RandomAccessFile(file, "rw");
-            reader.seek(i * chunkSize);
+        // Next chunk to process (0-based) and number of chunks processed
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
 
-            // Read the chunk
-            int length = reader.read(bytes);
+        // Process the n chunks
+        threads = Math.max(1, Math.min(threads, n));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+                        int i;
+                        while ((i = next.getAndIncrement()) < n) {
+                            // Read the i-th chunk
+                            read(input, buffer, (long) i * chunkSize);
+
+                            task.process(i + 1, buffer);
+                            Log.progress(label, done.incrementAndGet(), n);
+                        }
+                        return null;
+                    }
+                }));
+            }
 
-            // Store the chunk to the file system
-            save(chunkDir + (i + 1), bytes, length);
-            System.out.print(".");
+            // Wait for the workers
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Processing file interrupted");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            input.close();
         }
-        System.out.println("Splitting file finished!");
 
         // Return the number of chunks
         return n;
     }
 
+    /**
+     * Reads a chunk at a position of the files
+     *
+     * @param input    the files
+     * @param buffer   buffer to fill
+     * @param position position of the chunk
+     */
+    private static void read(ManifestChannel input, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.clear();
+        input.read(buffer, position);
+        buffer.flip();
+    }
+
+    /**
+     * Calculates the number of chunks of a file
+     *
+     * @param totalSize size of the file
+     * @param chunkSize size of each chunk
+     * @return Number of chunks
+     */
+    public static int countChunks(long totalSize, int chunkSize) {
+        int n = (int) (totalSize / chunkSize);
+        if (totalSize % chunkSize != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Chooses the size of the chunks of a file, so that there are about a
+     * target number of chunks: a power of two times the smallest size, at
+     * most the largest size
+     *
+     * @param totalSize    size of the file
+     * @param targetChunks number of chunks aimed at
+     * @param minSize      smallest chunk size
+     * @param maxSize      largest chunk size
+     * @return Size of each chunk
+     */
+    public static int chooseChunkSize(long totalSize, int targetChunks, int minSize,
+                                      int maxSize) {
+        long ideal = (totalSize + targetChunks - 1) / targetChunks;
+        int chunkSize = minSize;
+        while (chunkSize < ideal && chunkSize < maxSize) {
+            chunkSize <<= 1;
+        }
+        return Math.min(chunkSize, maxSize);
+    }
+
     /**
      * Stores the chunk file to the file
      *
      * @param filename chunk file name
-     * @param bytes    bytes array
-     * @param length   number of bytes
+     * @param buffer   bytes of the chunk
      */
-    private static void save(String filename, byte[] bytes, int length)
+    private static void save(String filename, ByteBuffer buffer)
             throws IOException {
-        FileOutputStream output = null;
+        FileOutputStream output = new FileOutputStream(filename);
         try {
-            File file = new File(filename);
-            if (!file.exists()) {
-                file.createNewFile();
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
-            output = new FileOutputStream(filename);
-            output.write(bytes, 0, length);
-
         } finally {
-            if (output != null) {
-                output.close();
-            }
+            output.close();
         }
     }
 }